@@ -0,0 +1,25 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.HmDianPingApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * 在压测进程里启动应用，不启动web服务器，直接调用service和工具类；
+ * 连接的是本地的redis和mysql，和应用用同一份application.yaml，可以用-D参数覆盖
+ */
+public final class BenchmarkContext {
+    private BenchmarkContext() {
+    }
+
+    /**
+     * @param properties 额外的配置，格式 key=value，优先级高于application.yaml
+     */
+    public static ConfigurableApplicationContext start(String... properties){
+        return new SpringApplicationBuilder(HmDianPingApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(properties)
+                .run();
+    }
+}
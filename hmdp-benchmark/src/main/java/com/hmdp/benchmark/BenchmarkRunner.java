@@ -0,0 +1,68 @@
+package com.hmdp.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 按不同的线程数依次运行基准测试，每个线程数写一个JSON结果文件，方便对比不同提交的结果。
+ * 用法：java -jar benchmarks.jar [线程数,...] [基准测试正则]，默认 1,4,16,64 和全部基准测试
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String threads = args.length > 0 ? args[0] : "1,4,16,64";
+        String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark";
+        File dir = new File("target/jmh", label());
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IllegalStateException("无法创建结果目录：" + dir.getAbsolutePath());
+        }
+        for (String t : threads.split(",")) {
+            int n = Integer.parseInt(t.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(n)
+                    .forks(1)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(5))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(5))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(dir, "threads-" + n + ".json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    /**
+     * 结果目录名：-Dlabel指定，否则用当前git提交，不在git仓库里时用当前时间
+     */
+    private static String label(){
+        String label = System.getProperty("label");
+        if(label != null && !label.isEmpty()){
+            return label;
+        }
+        try {
+            Process process = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String rev = reader.readLine();
+                if(process.waitFor() == 0 && rev != null && !rev.isEmpty()){
+                    return rev.trim();
+                }
+            }
+        } catch (Exception ignored) {
+            //没有git时用时间
+        }
+        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    }
+}
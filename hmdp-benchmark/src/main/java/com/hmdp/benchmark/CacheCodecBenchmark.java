@@ -0,0 +1,68 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient一次逻辑过期缓存命中的反序列化开销，和写入时的编码开销，不连redis
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheCodecBenchmark {
+    @Param({"json", "binary"})
+    public String codec;
+
+    private CacheCodec cacheCodec;
+    private Shop shop;
+    private long expireAt;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        cacheCodec = "json".equals(codec) ? new JsonCacheCodec() : new BinaryCacheCodec();
+        //hmdp.sql里的第一个商铺
+        shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.now());
+        shop.setUpdateTime(LocalDateTime.now());
+        expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(20);
+        encoded = cacheCodec.encode(shop, expireAt);
+    }
+
+    @Benchmark
+    public Shop decode(){
+        return cacheCodec.decode(encoded, Shop.class, true).getValue();
+    }
+
+    @Benchmark
+    public byte[] encode(){
+        return cacheCodec.encode(shop, expireAt);
+    }
+}
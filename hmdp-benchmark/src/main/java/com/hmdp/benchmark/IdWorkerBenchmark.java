@@ -0,0 +1,46 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisIdWorker.nextId：每个id都INCR一次，和号段模式在本地发放
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdWorkerBenchmark {
+    @Param({"0", "1000"})
+    public long segmentSize;
+
+    private ConfigurableApplicationContext context;
+    private RedisIdWorker idWorker;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        context = BenchmarkContext.start("hmdp.id-worker.segment-size=" + segmentSize);
+        idWorker = context.getBean(RedisIdWorker.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public long nextId(){
+        return idWorker.nextId("bench");
+    }
+}
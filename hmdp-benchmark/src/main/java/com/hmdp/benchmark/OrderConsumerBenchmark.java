@@ -0,0 +1,91 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IIdWorker;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单消费者的落库路径：一个事务里批量扣库存、批量插入订单。
+ * 一次调用处理一批，orders计数器折算成每秒落库的订单数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OrderConsumerBenchmark {
+    private static final int STOCK = 100_000_000;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private ConfigurableApplicationContext context;
+    private IVoucherOrderService voucherOrderService;
+    private IIdWorker idWorker;
+    private Long voucherId;
+    private final AtomicLong userIds = new AtomicLong();
+
+    /**
+     * 每个线程落库的订单数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long orders;
+    }
+
+    @Setup(Level.Trial)
+    public void setup(){
+        context = BenchmarkContext.start();
+        voucherOrderService = context.getBean(IVoucherOrderService.class);
+        idWorker = context.getBean(IIdWorker.class);
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("benchmark");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public void createVoucherOrders(Counters counters){
+        List<VoucherOrder> orders = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(idWorker.nextId("order"));
+            order.setUserId(userIds.incrementAndGet());
+            order.setVoucherId(voucherId);
+            orders.add(order);
+        }
+        voucherOrderService.createVoucherOrders(orders);
+        counters.orders += batchSize;
+    }
+}
@@ -0,0 +1,93 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VoucherOrderServiceImpl.seckillVoucher：每次调用换一个用户，只测抢购资格和发送订单消息，
+ * 后台的订单消费者照常把订单写进数据库。
+ * script和lease是单个库存key的两种扣减方式，sharded是8个分片的库存脚本；
+ * 分片券不走lease，所以没有lease加分片的组合
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SeckillBenchmark {
+    //库存足够大，压测过程中不会卖完
+    private static final int STOCK = 100_000_000;
+
+    private static final int SHARDS = 8;
+
+    @Param({"script", "lease", "sharded"})
+    public String mode;
+
+    private ConfigurableApplicationContext context;
+    private IVoucherOrderService voucherOrderService;
+    private Long voucherId;
+    private final AtomicLong userIds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup(){
+        //压测的是下单本身，关掉接口限流
+        String seckillMode = "lease".equals(mode) ? "lease" : "script";
+        context = BenchmarkContext.start("hmdp.seckill.mode=" + seckillMode, "hmdp.seckill.limit.enabled=false");
+        voucherOrderService = context.getBean(IVoucherOrderService.class);
+        //每轮新建一张秒杀券，不受上一轮的库存和下单用户影响
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("benchmark");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setStockShards("sharded".equals(mode) ? SHARDS : 1);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        //删除这一轮建的券和订单，重复压测不会在库里越积越多；
+        //先删秒杀券，消费者还没写完的订单扣不到库存会整批回滚，不会在删完订单之后再落库
+        context.getBean(ISeckillVoucherService.class).removeById(voucherId);
+        context.getBean(IVoucherService.class).removeById(voucherId);
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        context.close();
+    }
+
+    @Benchmark
+    public Result seckillVoucher(){
+        UserDTO user = new UserDTO();
+        user.setId(userIds.incrementAndGet());
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.hmdp.loadtest;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成大规模的测试数据：tb_user、tb_shop、tb_follow、tb_blog，可选同时写入对应的redis结构。
+ * <ul>
+ *     <li>商铺热度按Zipf分布：排名靠前的商铺销量、评论多，探店博客也集中在这些商铺上</li>
+ *     <li>粉丝数按幂律分布：少数用户有大量粉丝，大多数用户只有几个</li>
+ *     <li>新数据的id接在表里已有的最大id后面，可以在hmdp.sql的基础上追加</li>
+ *     <li>redis：follows:{userId}、feed:{userId}（只推送最近feedDays天的博客）、shop:geo:{typeId}</li>
+ * </ul>
+ * 用法：java -Dshops=1000000 -Dfollows=10000000 -Dblogs=5000000 -Dredis=true -cp target/loadtest.jar com.hmdp.loadtest.DataGenerator
+ */
+public class DataGenerator {
+    private final String jdbcUrl = System.getProperty("jdbcUrl",
+            "jdbc:mysql://127.0.0.1:3306/hmdp?useSSL=false&serverTimezone=UTC&characterEncoding=UTF-8&rewriteBatchedStatements=true");
+    private final String jdbcUser = System.getProperty("jdbcUser", "root");
+    private final String jdbcPassword = System.getProperty("jdbcPassword", "123456");
+    /**
+     * insert：多值insert；load：LOAD DATA LOCAL INFILE，需要mysql开启local_infile
+     */
+    private final boolean loadData = "load".equals(System.getProperty("mode", "insert"));
+    private final int batch = Integer.getInteger("batch", 5000);
+
+    private final int users = Integer.getInteger("users", 100_000);
+    private final int shops = Integer.getInteger("shops", 1_000_000);
+    private final long follows = Long.getLong("follows", 10_000_000L);
+    private final int blogs = Integer.getInteger("blogs", 5_000_000);
+    /**
+     * 手机号是 phonePrefix + 8位用户id，和LoadTest的手机号规则一样
+     */
+    private final String phonePrefix = System.getProperty("phonePrefix", "139");
+
+    private final double shopSkew = Double.parseDouble(System.getProperty("shopSkew", "1.0"));
+    private final double followSkew = Double.parseDouble(System.getProperty("followSkew", "1.1"));
+    private final double authorSkew = Double.parseDouble(System.getProperty("authorSkew", "0.8"));
+    /**
+     * 商铺类型数，和tb_shop_type一致
+     */
+    private final int shopTypes = Integer.getInteger("shopTypes", 10);
+    /**
+     * 商铺坐标围绕的中心和半径
+     */
+    private final double centerX = Double.parseDouble(System.getProperty("centerX", "120.149993"));
+    private final double centerY = Double.parseDouble(System.getProperty("centerY", "30.334229"));
+    private final double radiusKm = Double.parseDouble(System.getProperty("radiusKm", "20"));
+    /**
+     * 关注和博客的时间分布在最近多少天内
+     */
+    private final int days = Integer.getInteger("days", 365);
+
+    private final boolean redis = Boolean.getBoolean("redis");
+    private final String redisUri = System.getProperty("redisUri", "redis://127.0.0.1:6379");
+    private final int pipeline = Integer.getInteger("pipeline", 1000);
+    private final int feedDays = Integer.getInteger("feedDays", 3);
+
+    private final Random random = new Random(Long.getLong("seed", 42L));
+    private final long now = System.currentTimeMillis();
+    private long userBase;
+    private long shopBase;
+    private long blogBase;
+    //关注关系的邻接表（按被关注的人分组的粉丝下标），推送博客到粉丝收件箱时用
+    private int[] followerOffsets;
+    private int[] followers;
+
+    public static void main(String[] args) throws Exception {
+        new DataGenerator().run();
+    }
+
+    public void run() throws Exception {
+        //每个人最多关注除自己以外的所有人
+        if(follows < 0 || follows > (long) users * (users - 1)){
+            throw new IllegalArgumentException("follows不能超过users*(users-1)：users=" + users + "，follows=" + follows);
+        }
+        System.out.printf("generate users=%d shops=%d follows=%d blogs=%d mode=%s redis=%s%n",
+                users, shops, follows, blogs, loadData ? "load" : "insert", redis);
+        RedisClient redisClient = redis ? RedisClient.create(redisUri) : null;
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, jdbcUser, jdbcPassword);
+             StatefulRedisConnection<String, String> redisConnection = redis ? redisClient.connect() : null) {
+            connection.setAutoCommit(false);
+            userBase = maxId(connection, "tb_user") + 1;
+            shopBase = maxId(connection, "tb_shop") + 1;
+            blogBase = maxId(connection, "tb_blog") + 1;
+            generateUsers(connection);
+            generateShops(connection, redisConnection);
+            generateFollows(connection, redisConnection);
+            generateBlogs(connection, redisConnection);
+        } finally {
+            if(redisClient != null){
+                redisClient.shutdown();
+            }
+        }
+    }
+
+    private void generateUsers(Connection connection) throws SQLException {
+        long begin = System.nanoTime();
+        try (TableWriter writer = new TableWriter(connection, "tb_user", loadData, batch, "id", "phone", "nick_name")) {
+            for (int i = 0; i < users; i++) {
+                long id = userBase + i;
+                writer.add(id, phonePrefix + String.format("%08d", id), "user_" + id);
+            }
+        }
+        done("tb_user", users, begin);
+    }
+
+    private void generateShops(Connection connection, StatefulRedisConnection<String, String> redisConnection) throws SQLException {
+        long begin = System.nanoTime();
+        //经纬度1度大约111公里
+        double radius = radiusKm / 111.0;
+        try (TableWriter writer = new TableWriter(connection, "tb_shop", loadData, batch,
+                "id", "name", "type_id", "images", "area", "address", "x", "y", "avg_price", "sold", "comments", "score", "open_hours");
+             RedisPipeline geo = redisConnection == null ? null : new RedisPipeline(redisConnection, pipeline)) {
+            for (int i = 0; i < shops; i++) {
+                long id = shopBase + i;
+                long typeId = 1 + random.nextInt(shopTypes);
+                //正态分布，越靠近中心商铺越密集
+                double x = centerX + random.nextGaussian() * radius / 2;
+                double y = centerY + random.nextGaussian() * radius / 2;
+                //第i个商铺的热度排名就是i+1，销量和评论数按排名的幂律衰减
+                double heat = 1 / Math.pow(i + 1, shopSkew);
+                long sold = (long) (100_000 * heat) + random.nextInt(100);
+                long comments = (long) (20_000 * heat) + random.nextInt(20);
+                writer.add(id, "shop_" + id, typeId, "", "area_" + random.nextInt(100), "address_" + id, x, y,
+                        20 + random.nextInt(300), sold, comments, 30 + random.nextInt(21), "10:00-22:00");
+                if(geo != null){
+                    geo.added(geo.commands().geoadd("shop:geo:" + typeId, x, y, String.valueOf(id)));
+                }
+            }
+        }
+        done("tb_shop", shops, begin);
+    }
+
+    /**
+     * 每个用户关注的人数按指数分布，关注谁按幂律分布，同一个人不重复关注
+     */
+    private void generateFollows(Connection connection, StatefulRedisConnection<String, String> redisConnection) throws SQLException {
+        long begin = System.nanoTime();
+        PowerLaw followee = new PowerLaw(users, followSkew);
+        int[] degrees = followDegrees(users, follows, random);
+        boolean keepGraph = redisConnection != null && feedDays > 0;
+        //(粉丝, 被关注的人)，只在需要推送收件箱时保存
+        int[] from = keepGraph ? new int[(int) follows] : null;
+        int[] to = keepGraph ? new int[(int) follows] : null;
+        long written = 0;
+        try (TableWriter writer = new TableWriter(connection, "tb_follow", loadData, batch, "user_id", "follow_user_id", "create_time");
+             RedisPipeline sets = redisConnection == null ? null : new RedisPipeline(redisConnection, pipeline)) {
+            //每个用户只生成一次，关注的人在这一次里去重
+            for (int u = 0; u < users; u++) {
+                if(degrees[u] == 0){
+                    continue;
+                }
+                int[] picked = pickFollowees(u, degrees[u], users, followee, random);
+                String[] members = new String[picked.length];
+                for (int m = 0; m < picked.length; m++) {
+                    int v = picked[m];
+                    writer.add(userBase + u, userBase + v, randomTime(days));
+                    if(keepGraph){
+                        from[(int) written] = u;
+                        to[(int) written] = v;
+                    }
+                    written++;
+                    members[m] = String.valueOf(userBase + v);
+                }
+                if(sets != null){
+                    sets.added(sets.commands().sadd("follows:" + (userBase + u), members));
+                }
+            }
+        }
+        if(keepGraph){
+            buildFollowerIndex(from, to, (int) written);
+        }
+        done("tb_follow", written, begin);
+    }
+
+    /**
+     * 每个用户关注的人数：先按指数分布抽样，再从随机位置开始轮流加减1，总数正好是follows；
+     * 每个人最多关注users-1个人，follows不超过users*(users-1)时一定能凑够
+     */
+    static int[] followDegrees(int users, long follows, Random random){
+        int[] degrees = new int[users];
+        if(users == 0){
+            return degrees;
+        }
+        double avgDegree = (double) follows / users;
+        long sum = 0;
+        for (int u = 0; u < users; u++) {
+            degrees[u] = (int) Math.min(users - 1, Math.round(-avgDegree * Math.log(1 - random.nextDouble())));
+            sum += degrees[u];
+        }
+        for (int u = random.nextInt(users); sum != follows; u = (u + 1) % users) {
+            if(sum < follows && degrees[u] < users - 1){
+                degrees[u]++;
+                sum++;
+            }else if(sum > follows && degrees[u] > 0){
+                degrees[u]--;
+                sum--;
+            }
+        }
+        return degrees;
+    }
+
+    /**
+     * 用户u关注的degree个人：按幂律抽样，抽到重复的或者自己不算；
+     * 抽样次数用完还不够时，从随机位置开始按顺序补上还没关注的人
+     */
+    static int[] pickFollowees(int u, int degree, int users, PowerLaw followee, Random random){
+        Set<Integer> picked = new LinkedHashSet<>(degree * 2);
+        for (int attempt = 0; picked.size() < degree && attempt < degree * 3; attempt++) {
+            int v = (int) followee.next(random) - 1;
+            if(v != u){
+                picked.add(v);
+            }
+        }
+        for (int v = random.nextInt(users); picked.size() < degree; v = (v + 1) % users) {
+            if(v != u){
+                picked.add(v);
+            }
+        }
+        int[] result = new int[degree];
+        int i = 0;
+        for (int v : picked) {
+            result[i++] = v;
+        }
+        return result;
+    }
+
+    /**
+     * 按被关注的人分组，followers[followerOffsets[v]..followerOffsets[v+1]) 是v的粉丝
+     */
+    private void buildFollowerIndex(int[] from, int[] to, int count){
+        followerOffsets = new int[users + 1];
+        for (int i = 0; i < count; i++) {
+            followerOffsets[to[i] + 1]++;
+        }
+        for (int v = 0; v < users; v++) {
+            followerOffsets[v + 1] += followerOffsets[v];
+        }
+        followers = new int[count];
+        int[] cursor = new int[users];
+        for (int i = 0; i < count; i++) {
+            int v = to[i];
+            followers[followerOffsets[v] + cursor[v]++] = from[i];
+        }
+    }
+
+    /**
+     * 博客按id递增的时间发布，作者按幂律分布，商铺按Zipf分布；最近feedDays天的博客推送到粉丝的收件箱
+     */
+    private void generateBlogs(Connection connection, StatefulRedisConnection<String, String> redisConnection) throws SQLException {
+        long begin = System.nanoTime();
+        PowerLaw author = new PowerLaw(users, authorSkew);
+        PowerLaw shop = new PowerLaw(shops, shopSkew);
+        long span = TimeUnit.DAYS.toMillis(days);
+        long feedFrom = now - TimeUnit.DAYS.toMillis(feedDays);
+        long pushed = 0;
+        try (TableWriter writer = new TableWriter(connection, "tb_blog", loadData, batch,
+                "id", "shop_id", "user_id", "title", "images", "content", "liked", "comments", "create_time");
+             RedisPipeline feed = redisConnection == null || followers == null ? null : new RedisPipeline(redisConnection, pipeline)) {
+            for (int i = 0; i < blogs; i++) {
+                long id = blogBase + i;
+                int u = (int) author.next(random) - 1;
+                long createTime = now - span + span * i / blogs + random.nextInt(1000);
+                //点赞数在0到999之间按对数均匀分布，大部分博客点赞很少
+                int liked = (int) Math.pow(10, random.nextDouble() * 3) - 1;
+                writer.add(id, shopBase + shop.next(random) - 1, userBase + u, "blog_" + id, "",
+                        "content of blog " + id, liked, liked / 10, new Timestamp(createTime));
+                if(feed != null && createTime >= feedFrom){
+                    String member = String.valueOf(id);
+                    for (int f = followerOffsets[u]; f < followerOffsets[u + 1]; f++) {
+                        feed.added(feed.commands().zadd("feed:" + (userBase + followers[f]), createTime, member));
+                        pushed++;
+                    }
+                }
+            }
+        }
+        done("tb_blog", blogs, begin);
+        if(pushed > 0){
+            System.out.printf("pushed %d feed entries%n", pushed);
+        }
+    }
+
+    private Timestamp randomTime(int withinDays){
+        return new Timestamp(now - (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(withinDays)));
+    }
+
+    private static long maxId(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT IFNULL(MAX(id), 0) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void done(String table, long rows, long beginNanos){
+        double seconds = (System.nanoTime() - beginNanos) / 1e9;
+        System.out.printf("%-10s %,d rows in %.1fs (%,.0f rows/s)%n", table, rows, seconds, rows / Math.max(seconds, 1e-3));
+    }
+}
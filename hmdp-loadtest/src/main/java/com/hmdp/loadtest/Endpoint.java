@@ -0,0 +1,46 @@
+package com.hmdp.loadtest;
+
+/**
+ * 压测的接口
+ */
+public enum Endpoint {
+    /**
+     * GET /shop/{id}
+     */
+    SHOP("shop"),
+    /**
+     * GET /blog/hot
+     */
+    HOT("hot"),
+    /**
+     * GET /blog/of/follow，需要登录
+     */
+    FOLLOW("follow"),
+    /**
+     * POST /voucher-order/seckill/{id}，需要登录
+     */
+    SECKILL("seckill"),
+    /**
+     * 登录阶段的 POST /user/code 和 POST /user/login，单独统计
+     */
+    LOGIN("login");
+
+    private final String key;
+
+    Endpoint(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public static Endpoint of(String key){
+        for (Endpoint endpoint : values()) {
+            if(endpoint.key.equals(key)){
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("未知的接口：" + key);
+    }
+}
@@ -0,0 +1,93 @@
+package com.hmdp.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个接口的延迟和结果统计，延迟单位微秒
+ */
+public class EndpointStats {
+    //1微秒到1分钟，3位有效数字
+    private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(1);
+
+    private final Endpoint endpoint;
+    //多个线程并发写，报告线程定期取走区间数据
+    private final Recorder recorder = new Recorder(MAX_LATENCY_US, 3);
+    private final Histogram total = new Histogram(MAX_LATENCY_US, 3);
+    private Histogram interval;
+    /**
+     * 业务成功
+     */
+    final LongAdder ok = new LongAdder();
+    /**
+     * 返回了success=false，比如库存不足、重复下单
+     */
+    final LongAdder failed = new LongAdder();
+    /**
+     * 被限流，HTTP 429
+     */
+    final LongAdder limited = new LongAdder();
+    /**
+     * 其他HTTP错误、超时、连接失败
+     */
+    final LongAdder errors = new LongAdder();
+
+    public EndpointStats(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public void record(long latencyNanos, Result result){
+        recorder.recordValue(Math.min(MAX_LATENCY_US, Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos))));
+        switch (result){
+            case OK:
+                ok.increment();
+                break;
+            case FAILED:
+                failed.increment();
+                break;
+            case LIMITED:
+                limited.increment();
+                break;
+            default:
+                errors.increment();
+        }
+    }
+
+    /**
+     * 取走上一次之后的区间数据，累加到总数里
+     * @return 区间内的延迟分布
+     */
+    public synchronized Histogram drain(){
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return interval;
+    }
+
+    public synchronized Histogram getTotal(){
+        return total;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * 写出完整的百分位分布，可以用HdrHistogram的plotter画图，也可以和上一次的结果对比
+     */
+    public synchronized void writeDistribution(File file) throws FileNotFoundException {
+        try (PrintStream out = new PrintStream(file)) {
+            //输出的数值单位是毫秒
+            total.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    public enum Result {
+        OK, FAILED, LIMITED, ERROR
+    }
+}
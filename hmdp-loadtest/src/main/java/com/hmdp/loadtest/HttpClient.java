@@ -0,0 +1,69 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.io.IoUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基于HttpURLConnection的简单客户端，响应体读完后连接放回keep-alive池，同一个线程可以复用
+ */
+public class HttpClient {
+    private final String baseUrl;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public HttpClient(String baseUrl, int connectTimeoutMs, int readTimeoutMs) {
+        this.baseUrl = baseUrl;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    public Response get(String path, String token) throws IOException {
+        return execute("GET", path, token, null);
+    }
+
+    public Response post(String path, String token, String json) throws IOException {
+        return execute("POST", path, token, json);
+    }
+
+    private Response execute(String method, String path, String token, String json) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        if(token != null){
+            conn.setRequestProperty("authorization", token);
+        }
+        if(json != null){
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if(in == null){
+            return new Response(status, "");
+        }
+        //响应体必须读完并关闭，连接才能复用
+        try (InputStream body = in) {
+            return new Response(status, IoUtil.read(body, StandardCharsets.UTF_8));
+        }
+    }
+}
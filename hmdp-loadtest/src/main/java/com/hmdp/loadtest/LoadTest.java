@@ -0,0 +1,262 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HTTP接口压测
+ * 1.用合成的手机号通过 /user/code 和 /user/login 登录一批用户，验证码从redis读取；
+ * 2.按权重混合请求 /shop/{id}、/blog/hot、/blog/of/follow、/voucher-order/seckill/{id}，
+ *   每个接口用HdrHistogram记录延迟，定期打印区间统计，结束后输出汇总和完整的分布文件
+ */
+public class LoadTest {
+    private static final String LOGIN_CODE_KEY = "login:code:";
+
+    private final LoadTestConfig config;
+    private final Map<Endpoint, EndpointStats> stats = new EnumMap<>(Endpoint.class);
+    //按权重选接口：累计权重和对应的接口
+    private final int[] cumulativeWeights;
+    private final Endpoint[] weightedEndpoints;
+    private String[] tokens;
+
+    public LoadTest(LoadTestConfig config) {
+        this.config = config;
+        for (Endpoint endpoint : Endpoint.values()) {
+            stats.put(endpoint, new EndpointStats(endpoint));
+        }
+        cumulativeWeights = new int[config.mix.size()];
+        weightedEndpoints = new Endpoint[config.mix.size()];
+        int i = 0, sum = 0;
+        for (Map.Entry<Endpoint, Integer> entry : config.mix.entrySet()) {
+            sum += entry.getValue();
+            cumulativeWeights[i] = sum;
+            weightedEndpoints[i++] = entry.getKey();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = new LoadTestConfig();
+        //每个压测线程都要保持一个keep-alive连接
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(config.threads, config.loginThreads)));
+        System.out.println("load test: " + config);
+        new LoadTest(config).run();
+    }
+
+    public void run() throws Exception {
+        login();
+        long loggedIn = 0;
+        for (String token : tokens) {
+            if(token != null){
+                loggedIn++;
+            }
+        }
+        report("login", stats.get(Endpoint.LOGIN).drain(), 0);
+        if(loggedIn == 0){
+            System.out.println("没有登录成功的用户，结束压测");
+            return;
+        }
+        System.out.printf("logged in %d/%d users%n", loggedIn, config.users);
+        drive();
+        writeResults();
+    }
+
+    /**
+     * 登录阶段：手机号是 phonePrefix + 8位序号，不存在的用户由登录接口自动注册
+     */
+    private void login() throws InterruptedException {
+        tokens = new String[config.users];
+        RedisClient redisClient = RedisClient.create(config.redisUri);
+        ExecutorService executor = Executors.newFixedThreadPool(config.loginThreads);
+        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
+            //lettuce的连接是线程安全的，所有登录线程共用一个
+            RedisCommands<String, String> redis = connection.sync();
+            HttpClient http = new HttpClient(config.baseUrl, config.connectTimeoutMs, config.readTimeoutMs);
+            EndpointStats loginStats = stats.get(Endpoint.LOGIN);
+            for (int i = 0; i < config.users; i++) {
+                int index = i;
+                executor.execute(() -> {
+                    String phone = config.phonePrefix + String.format("%08d", index);
+                    long begin = System.nanoTime();
+                    try {
+                        HttpClient.Response sent = http.post("/user/code?phone=" + phone, null, null);
+                        String code = sent.status == 200 ? redis.get(LOGIN_CODE_KEY + phone) : null;
+                        if(code == null){
+                            loginStats.record(System.nanoTime() - begin, EndpointStats.Result.ERROR);
+                            return;
+                        }
+                        JSONObject form = new JSONObject();
+                        form.set("phone", phone);
+                        form.set("code", code);
+                        HttpClient.Response response = http.post("/user/login", null, form.toString());
+                        EndpointStats.Result result = classify(response);
+                        loginStats.record(System.nanoTime() - begin, result);
+                        if(result == EndpointStats.Result.OK){
+                            tokens[index] = JSONUtil.parseObj(response.body).getStr("data");
+                        }
+                    } catch (Exception e) {
+                        loginStats.record(System.nanoTime() - begin, EndpointStats.Result.ERROR);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } finally {
+            redisClient.shutdown();
+        }
+    }
+
+    /**
+     * 压测阶段：预热期间的请求不计入统计
+     */
+    private void drive() throws InterruptedException {
+        List<String> loggedIn = new ArrayList<>();
+        for (String token : tokens) {
+            if(token != null){
+                loggedIn.add(token);
+            }
+        }
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(config.warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(config.duration);
+        //限速时每个线程的发送间隔
+        long intervalNanos = config.rate > 0 ? TimeUnit.SECONDS.toNanos(config.threads) / config.rate : 0;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            if(now >= measureFrom){
+                for (Endpoint endpoint : config.mix.keySet()) {
+                    report(endpoint.getKey(), stats.get(endpoint).drain(), config.reportInterval);
+                }
+            }
+        }, config.warmup + config.reportInterval, config.reportInterval, TimeUnit.SECONDS);
+
+        ExecutorService workers = Executors.newFixedThreadPool(config.threads);
+        for (int t = 0; t < config.threads; t++) {
+            //限速时各线程错开发送时间，不在同一时刻一起发
+            long offset = intervalNanos * t / config.threads;
+            workers.execute(() -> work(loggedIn, start + offset, measureFrom, end, intervalNanos));
+        }
+        workers.shutdown();
+        workers.awaitTermination(config.warmup + config.duration + 60, TimeUnit.SECONDS);
+        reporter.shutdownNow();
+        reporter.awaitTermination(5, TimeUnit.SECONDS);
+        //最后一个区间不满也取走
+        for (Endpoint endpoint : config.mix.keySet()) {
+            stats.get(endpoint).drain();
+        }
+    }
+
+    private void work(List<String> tokens, long firstSend, long measureFrom, long end, long intervalNanos){
+        HttpClient http = new HttpClient(config.baseUrl, config.connectTimeoutMs, config.readTimeoutMs);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intended = firstSend;
+        while (true){
+            if(intervalNanos > 0){
+                //按计划时间发送，落后于计划时不等待，延迟从计划时间开始算
+                long wait = intended - System.nanoTime();
+                if(wait > 0){
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            long begin = intervalNanos > 0 ? intended : System.nanoTime();
+            if(begin >= end){
+                return;
+            }
+            Endpoint endpoint = pick(random);
+            String token = tokens.get(random.nextInt(tokens.size()));
+            EndpointStats.Result result;
+            try {
+                result = classify(send(http, endpoint, token, random));
+            } catch (IOException e) {
+                result = EndpointStats.Result.ERROR;
+            }
+            if(begin >= measureFrom){
+                stats.get(endpoint).record(System.nanoTime() - begin, result);
+            }
+            intended += intervalNanos;
+        }
+    }
+
+    private Endpoint pick(ThreadLocalRandom random){
+        int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if(r < cumulativeWeights[i]){
+                return weightedEndpoints[i];
+            }
+        }
+        return weightedEndpoints[weightedEndpoints.length - 1];
+    }
+
+    private HttpClient.Response send(HttpClient http, Endpoint endpoint, String token, ThreadLocalRandom random) throws IOException {
+        switch (endpoint){
+            case SHOP:
+                return http.get("/shop/" + random.nextLong(config.shopIds[0], config.shopIds[1] + 1), null);
+            case HOT:
+                return http.get("/blog/hot?current=" + random.nextInt(1, config.hotPages + 1), token);
+            case FOLLOW:
+                return http.get("/blog/of/follow?lastId=" + System.currentTimeMillis() + "&offset=0", token);
+            case SECKILL:
+                return http.post("/voucher-order/seckill/" + config.voucherId, token, null);
+            default:
+                throw new IllegalArgumentException("不能压测的接口：" + endpoint);
+        }
+    }
+
+    private static EndpointStats.Result classify(HttpClient.Response response){
+        if(response.status == 429){
+            return EndpointStats.Result.LIMITED;
+        }
+        if(response.status != 200){
+            return EndpointStats.Result.ERROR;
+        }
+        try {
+            return JSONUtil.parseObj(response.body).getBool("success", false) ? EndpointStats.Result.OK : EndpointStats.Result.FAILED;
+        } catch (Exception e) {
+            return EndpointStats.Result.ERROR;
+        }
+    }
+
+    private static void report(String name, Histogram h, int seconds){
+        System.out.printf("%-8s count=%-8d %s p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n",
+                name, h.getTotalCount(), seconds > 0 ? String.format("rps=%-8.1f", h.getTotalCount() / (double) seconds) : "",
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    private void writeResults() throws IOException {
+        File dir = new File("target/loadtest", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("无法创建结果目录：" + dir.getAbsolutePath());
+        }
+        System.out.println("==== summary (" + config.duration + "s) ====");
+        for (Endpoint endpoint : config.mix.keySet()) {
+            EndpointStats s = stats.get(endpoint);
+            report(endpoint.getKey(), s.getTotal(), config.duration);
+            System.out.printf("%-8s ok=%d failed=%d limited=%d errors=%d%n", "",
+                    s.ok.sum(), s.failed.sum(), s.limited.sum(), s.errors.sum());
+            s.writeDistribution(new File(dir, endpoint.getKey() + ".hgrm"));
+        }
+        stats.get(Endpoint.LOGIN).writeDistribution(new File(dir, "login.hgrm"));
+        System.out.println("distributions written to " + dir.getAbsolutePath());
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压测参数，全部从-D系统属性读取
+ */
+public class LoadTestConfig {
+    /**
+     * 应用地址
+     */
+    final String baseUrl = System.getProperty("baseUrl", "http://127.0.0.1:8081");
+    /**
+     * 读取登录验证码的redis
+     */
+    final String redisUri = System.getProperty("redisUri", "redis://127.0.0.1:6379");
+    /**
+     * 模拟的用户数，手机号是 phonePrefix + 8位序号，同一个序号每次都是同一个用户
+     */
+    final int users = Integer.getInteger("users", 2000);
+    final String phonePrefix = System.getProperty("phonePrefix", "139");
+    /**
+     * 登录阶段的并发数
+     */
+    final int loginThreads = Integer.getInteger("loginThreads", 50);
+    /**
+     * 压测阶段的并发数，每个线程一个连接
+     */
+    final int threads = Integer.getInteger("threads", 200);
+    /**
+     * 预热和正式压测的秒数，预热阶段的数据不计入结果
+     */
+    final int warmup = Integer.getInteger("warmup", 10);
+    final int duration = Integer.getInteger("duration", 60);
+    /**
+     * 目标总请求数每秒，0表示每个线程收到响应后立刻发下一个请求；
+     * 大于0时按计划时间发请求，延迟从计划时间开始算，服务端变慢时不会少算排队的时间
+     */
+    final int rate = Integer.getInteger("rate", 0);
+    /**
+     * 接口权重，格式 shop=60,hot=20,follow=15,seckill=5
+     */
+    final Map<Endpoint, Integer> mix = parseMix(System.getProperty("mix", "shop=60,hot=20,follow=15,seckill=5"));
+    /**
+     * 商铺id范围，格式 1-14
+     */
+    final long[] shopIds = parseRange(System.getProperty("shopIds", "1-14"));
+    /**
+     * 热门博客的页数范围
+     */
+    final int hotPages = Integer.getInteger("hotPages", 5);
+    /**
+     * 秒杀券id，没有指定时不压秒杀接口
+     */
+    final Long voucherId = Long.getLong("voucherId");
+    /**
+     * 每隔多少秒打印一次区间统计
+     */
+    final int reportInterval = Integer.getInteger("reportInterval", 10);
+    final int connectTimeoutMs = Integer.getInteger("connectTimeoutMs", 2000);
+    final int readTimeoutMs = Integer.getInteger("readTimeoutMs", 10000);
+
+    LoadTestConfig() {
+        if(voucherId == null){
+            mix.remove(Endpoint.SECKILL);
+        }
+        if(mix.isEmpty()){
+            throw new IllegalArgumentException("mix里没有可以压测的接口");
+        }
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String value){
+        Map<Endpoint, Integer> mix = new LinkedHashMap<>();
+        for (String item : value.split(",")) {
+            String[] kv = item.trim().split("=");
+            Endpoint endpoint = Endpoint.of(kv[0].trim());
+            if(endpoint == Endpoint.LOGIN){
+                throw new IllegalArgumentException("登录只在登录阶段压测，不能放进mix");
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            if(weight > 0){
+                mix.put(endpoint, weight);
+            }
+        }
+        return mix;
+    }
+
+    private static long[] parseRange(String value){
+        String[] range = value.split("-");
+        return new long[]{Long.parseLong(range[0].trim()), Long.parseLong(range[range.length - 1].trim())};
+    }
+
+    @Override
+    public String toString() {
+        return "baseUrl=" + baseUrl + ", users=" + users + ", threads=" + threads + ", warmup=" + warmup + "s"
+                + ", duration=" + duration + "s, rate=" + (rate > 0 ? rate + "/s" : "unlimited") + ", mix=" + mix
+                + ", shopIds=" + shopIds[0] + "-" + shopIds[1] + ", voucherId=" + voucherId;
+    }
+}
@@ -0,0 +1,39 @@
+package com.hmdp.loadtest;
+
+import java.util.Random;
+
+/**
+ * 有界幂律分布的采样，用来近似Zipf：排名为k的概率约等于 k^-s。
+ * 用连续分布的反函数直接算出排名，不需要预先计算一百万个元素的累积概率
+ */
+public class PowerLaw {
+    private final long n;
+    //s != 1 时反函数里用到的常量
+    private final double oneMinusS;
+    private final double nPow;
+
+    /**
+     * @param n 元素个数，排名从1到n
+     * @param s 指数，越大越集中在排名靠前的元素上；1.0左右是常见的Zipf分布
+     */
+    public PowerLaw(long n, double s) {
+        this.n = n;
+        this.oneMinusS = 1 - s;
+        this.nPow = Math.pow(n + 1, oneMinusS);
+    }
+
+    /**
+     * @return 1到n之间的排名
+     */
+    public long next(Random random){
+        double u = random.nextDouble();
+        double x;
+        if(Math.abs(oneMinusS) < 1e-9){
+            //s = 1：密度是1/x，反函数是 (n+1)^u
+            x = Math.pow(n + 1, u);
+        }else{
+            x = Math.pow((nPow - 1) * u + 1, 1 / oneMinusS);
+        }
+        return Math.min(n, Math.max(1, (long) x));
+    }
+}
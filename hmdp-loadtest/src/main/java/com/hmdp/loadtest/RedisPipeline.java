@@ -0,0 +1,65 @@
+package com.hmdp.loadtest;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 管道写入redis：命令先攒在本地，够一批后一次发送，再等这一批全部返回
+ */
+public class RedisPipeline implements AutoCloseable {
+    private final StatefulRedisConnection<String, String> connection;
+    private final RedisAsyncCommands<String, String> commands;
+    private final int batchSize;
+    private final List<RedisFuture<?>> futures;
+    private long sent;
+
+    public RedisPipeline(StatefulRedisConnection<String, String> connection, int batchSize) {
+        this.connection = connection;
+        this.batchSize = batchSize;
+        this.futures = new ArrayList<>(batchSize);
+        connection.setAutoFlushCommands(false);
+        this.commands = connection.async();
+    }
+
+    public RedisAsyncCommands<String, String> commands() {
+        return commands;
+    }
+
+    /**
+     * 记录一条已经加入管道的命令，够一批就发送
+     */
+    public void added(RedisFuture<?> future){
+        futures.add(future);
+        if(futures.size() >= batchSize){
+            sync();
+        }
+    }
+
+    public void sync(){
+        if(futures.isEmpty()){
+            return;
+        }
+        connection.flushCommands();
+        if(!LettuceFutures.awaitAll(1, TimeUnit.MINUTES, futures.toArray(new RedisFuture[0]))){
+            throw new IllegalStateException("redis管道写入超时");
+        }
+        sent += futures.size();
+        futures.clear();
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    @Override
+    public void close() {
+        sync();
+        connection.setAutoFlushCommands(true);
+    }
+}
@@ -0,0 +1,127 @@
+package com.hmdp.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量写入一张表，攒够一批后一次提交：
+ * insert模式用一条多值insert（rewriteBatchedStatements），load模式用 LOAD DATA LOCAL INFILE 从内存流导入
+ */
+public class TableWriter implements AutoCloseable {
+    private final Connection connection;
+    private final String table;
+    private final String[] columns;
+    private final boolean loadData;
+    private final int batchSize;
+    private final List<Object[]> rows;
+    private long written;
+
+    public TableWriter(Connection connection, String table, boolean loadData, int batchSize, String... columns) {
+        this.connection = connection;
+        this.table = table;
+        this.columns = columns;
+        this.loadData = loadData;
+        this.batchSize = batchSize;
+        this.rows = new ArrayList<>(batchSize);
+    }
+
+    public void add(Object... values) throws SQLException {
+        rows.add(values);
+        if(rows.size() >= batchSize){
+            flush();
+        }
+    }
+
+    public void flush() throws SQLException {
+        if(rows.isEmpty()){
+            return;
+        }
+        if(loadData){
+            loadData();
+        }else{
+            insert();
+        }
+        connection.commit();
+        written += rows.size();
+        rows.clear();
+    }
+
+    private void insert() throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(String.join(",", columns))
+                .append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    ps.setObject(i + 1, row[i]);
+                }
+                ps.addBatch();
+            }
+            //驱动把整批改写成一条多值insert
+            ps.executeBatch();
+        }
+    }
+
+    private void loadData() throws SQLException {
+        StringBuilder tsv = new StringBuilder(rows.size() * 64);
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if(i > 0){
+                    tsv.append('\t');
+                }
+                appendField(tsv, row[i]);
+            }
+            tsv.append('\n');
+        }
+        String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table + " CHARACTER SET utf8mb4 ("
+                + String.join(",", columns) + ")";
+        try (Statement statement = connection.createStatement()) {
+            //文件名只是占位，数据从内存流读取
+            statement.unwrap(com.mysql.jdbc.Statement.class)
+                    .setLocalInfileInputStream(new ByteArrayInputStream(tsv.toString().getBytes(StandardCharsets.UTF_8)));
+            statement.execute(sql);
+        }
+    }
+
+    private static void appendField(StringBuilder tsv, Object value){
+        if(value == null){
+            tsv.append("\\N");
+            return;
+        }
+        String s = value.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c){
+                case '\t':
+                    tsv.append("\\t");
+                    break;
+                case '\n':
+                    tsv.append("\\n");
+                    break;
+                case '\\':
+                    tsv.append("\\\\");
+                    break;
+                default:
+                    tsv.append(c);
+            }
+        }
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        flush();
+    }
+}
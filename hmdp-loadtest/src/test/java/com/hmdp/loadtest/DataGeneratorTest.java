@@ -0,0 +1,68 @@
+package com.hmdp.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DataGeneratorTest {
+
+    @Test
+    void degreesSumToFollows() {
+        Random random = new Random(1);
+        for (long follows : new long[]{0, 1, 999, 10_000, 50_000}) {
+            int[] degrees = DataGenerator.followDegrees(1000, follows, random);
+            assertEquals(follows, Arrays.stream(degrees).asLongStream().sum());
+            assertTrue(Arrays.stream(degrees).allMatch(d -> d >= 0 && d <= 999));
+        }
+    }
+
+    @Test
+    void degreesReachCompleteGraph() {
+        //每个人都关注其他所有人
+        int[] degrees = DataGenerator.followDegrees(50, 50 * 49, new Random(2));
+        assertTrue(Arrays.stream(degrees).allMatch(d -> d == 49));
+    }
+
+    @Test
+    void followeesAreDistinctAndExcludeSelf() {
+        int users = 200;
+        Random random = new Random(3);
+        //幂律很陡时抽样几乎都落在前几名上，要靠补齐凑够人数
+        PowerLaw steep = new PowerLaw(users, 3.0);
+        for (int u = 0; u < users; u++) {
+            int degree = u % users;
+            int[] picked = DataGenerator.pickFollowees(u, degree, users, steep, random);
+            assertEquals(degree, picked.length);
+            Set<Integer> distinct = new HashSet<>();
+            for (int v : picked) {
+                assertTrue(v >= 0 && v < users);
+                assertTrue(distinct.add(v), "重复关注 " + u + " -> " + v);
+            }
+            assertFalse(distinct.contains(u));
+        }
+    }
+
+    @Test
+    void noDuplicateFollowsAcrossUsers() {
+        //整个图里没有重复的(粉丝, 被关注的人)
+        int users = 500;
+        long follows = 20_000;
+        Random random = new Random(4);
+        PowerLaw followee = new PowerLaw(users, 1.1);
+        int[] degrees = DataGenerator.followDegrees(users, follows, random);
+        Set<Long> edges = new HashSet<>();
+        for (int u = 0; u < users; u++) {
+            for (int v : DataGenerator.pickFollowees(u, degrees[u], users, followee, random)) {
+                assertTrue(edges.add((long) u * users + v));
+            }
+        }
+        assertEquals(follows, edges.size());
+    }
+}
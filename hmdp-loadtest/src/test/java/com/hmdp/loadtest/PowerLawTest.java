@@ -0,0 +1,60 @@
+package com.hmdp.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PowerLawTest {
+
+    @Test
+    void ranksStayInRange() {
+        PowerLaw powerLaw = new PowerLaw(1000, 1.1);
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long rank = powerLaw.next(random);
+            assertTrue(rank >= 1 && rank <= 1000, "rank=" + rank);
+        }
+    }
+
+    @Test
+    void frequencyFollowsPowerLaw() {
+        //s=1时排名落在[1,10)、[10,100)、[100,1000)的概率都接近1/3
+        PowerLaw powerLaw = new PowerLaw(999, 1.0);
+        Random random = new Random(2);
+        int samples = 300_000;
+        int[] decades = new int[3];
+        for (int i = 0; i < samples; i++) {
+            long rank = powerLaw.next(random);
+            decades[rank < 10 ? 0 : rank < 100 ? 1 : 2]++;
+        }
+        for (int count : decades) {
+            assertEquals(1.0 / 3, (double) count / samples, 0.02);
+        }
+    }
+
+    @Test
+    void largerSkewConcentratesOnTopRanks() {
+        Random random = new Random(3);
+        double flat = topShare(new PowerLaw(10_000, 0.5), random);
+        double zipf = topShare(new PowerLaw(10_000, 1.0), random);
+        double steep = topShare(new PowerLaw(10_000, 1.5), random);
+        assertTrue(flat < zipf && zipf < steep, flat + " " + zipf + " " + steep);
+    }
+
+    /**
+     * 排名前1%的元素占的抽样比例
+     */
+    private static double topShare(PowerLaw powerLaw, Random random) {
+        int samples = 100_000;
+        int top = 0;
+        for (int i = 0; i < samples; i++) {
+            if(powerLaw.next(random) <= 100){
+                top++;
+            }
+        }
+        return (double) top / samples;
+    }
+}
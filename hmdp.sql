@@ -1284,13 +1284,15 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `cancel_id` bigint(20) NOT NULL DEFAULT 0 COMMENT '未取消为0，取消时设为订单id，唯一索引保证每个用户每张券只有一个未取消的订单',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_user_live`(`voucher_id`, `user_id`, `cancel_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = COMPACT;
 
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
-INSERT INTO `tb_voucher_order` VALUES (328076282405322757, 1010, 2, 1, 1, '2024-06-03 02:23:32', NULL, NULL, NULL, '2024-06-03 02:23:32');
-INSERT INTO `tb_voucher_order` VALUES (339822025822437381, 1010, 3, 1, 1, '2024-07-04 18:03:01', NULL, NULL, NULL, '2024-07-04 18:03:01');
+INSERT INTO `tb_voucher_order` VALUES (328076282405322757, 1010, 2, 1, 1, '2024-06-03 02:23:32', NULL, NULL, NULL, '2024-06-03 02:23:32', 0);
+INSERT INTO `tb_voucher_order` VALUES (339822025822437381, 1010, 3, 1, 1, '2024-07-04 18:03:01', NULL, NULL, NULL, '2024-07-04 18:03:01', 0);
 
 SET FOREIGN_KEY_CHECKS = 1;
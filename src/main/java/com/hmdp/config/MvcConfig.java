@@ -1,7 +1,11 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillLimitInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -14,6 +18,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     //这里自动注入springRedisTemplate
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Value("${hmdp.admin.enabled:false}")
+    private boolean adminEnabled;
+    @Value("${hmdp.admin.local-only:true}")
+    private boolean adminLocalOnly;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -24,8 +34,15 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/admin/**"
                 ).order(1);
+        //运维接口不走用户登录，由开关和来源地址控制
+        registry.addInterceptor(new AdminInterceptor(adminEnabled, adminLocalOnly))
+                .addPathPatterns("/admin/**").order(-2);
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        //秒杀限流放在最前面，被拒绝的请求不用再去redis查登录用户
+        registry.addInterceptor(new SeckillLimitInterceptor(seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/**").order(-1);
     }
 }
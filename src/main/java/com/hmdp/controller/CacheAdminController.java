@@ -0,0 +1,54 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.ShopCacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存运维接口，hmdp.admin.enabled开启后才能访问，默认只允许本机访问
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    /**
+     * 预热商铺缓存，条件都不传表示全部商铺
+     * @param typeId 商铺类型
+     * @param minId 最小商铺id，包含
+     * @param maxId 最大商铺id，包含
+     * @return 预热进度
+     */
+    @PostMapping("/shop/warm-up")
+    public Result warmUpShop(
+            @RequestParam(value = "typeId", required = false) Long typeId,
+            @RequestParam(value = "minId", required = false) Long minId,
+            @RequestParam(value = "maxId", required = false) Long maxId
+    ) {
+        if(minId != null && maxId != null && minId > maxId){
+            return Result.fail("id范围不正确");
+        }
+        ShopCacheWarmer.Progress progress = shopCacheWarmer.start(typeId, minId, maxId);
+        if(progress == null){
+            return Result.fail("预热正在进行");
+        }
+        return Result.ok(progress);
+    }
+
+    /**
+     * 查询这个节点最近一次预热的进度
+     */
+    @GetMapping("/shop/warm-up")
+    public Result warmUpShopProgress() {
+        return Result.ok(shopCacheWarmer.progress());
+    }
+}
@@ -4,10 +4,15 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
 
@@ -28,4 +33,30 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态：PENDING处理中、CREATED已创建、FAILED失败
+     */
+    @GetMapping("status/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 长轮询，订单有结果或者超时后返回
+     */
+    @GetMapping("status/{id}/poll")
+    public DeferredResult<Result> pollOrderStatus(@PathVariable("id") Long orderId,
+                                                  @RequestParam(value = "timeout", defaultValue = "30") Long timeout) {
+        return voucherOrderService.pollOrderStatus(orderId, timeout);
+    }
+
+    /**
+     * SSE，先推送当前状态，订单有结果时再推送一次并结束
+     */
+    @GetMapping(value = "status/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeOrderStatus(@PathVariable("id") Long orderId,
+                                           @RequestParam(value = "timeout", defaultValue = "30") Long timeout) {
+        return voucherOrderService.subscribeOrderStatus(orderId, timeout);
+    }
 }
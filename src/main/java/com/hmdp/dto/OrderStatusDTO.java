@@ -0,0 +1,34 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    /**
+     * 处理中：已经抢到资格，订单还没有落库
+     */
+    public static final String PENDING = "PENDING";
+    /**
+     * 订单已经写入数据库
+     */
+    public static final String CREATED = "CREATED";
+    /**
+     * 下单失败，比如数据库库存不足
+     */
+    public static final String FAILED = "FAILED";
+    /**
+     * 超时未支付，订单已取消
+     */
+    public static final String CANCELLED = "CANCELLED";
+
+    private Long orderId;
+    private String status;
+
+    public boolean isFinished(){
+        return !PENDING.equals(status);
+    }
+}
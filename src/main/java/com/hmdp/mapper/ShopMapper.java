@@ -2,6 +2,8 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +15,13 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取所有商铺id，要在事务内遍历
+     */
+    Cursor<Long> scanIds();
+
+    /**
+     * 按类型和id范围流式读取商铺，参数为null表示不限制，要在事务内遍历
+     */
+    Cursor<Shop> scanShops(@Param("typeId") Long typeId, @Param("minId") Long minId, @Param("maxId") Long maxId);
 }
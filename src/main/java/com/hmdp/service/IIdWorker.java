@@ -0,0 +1,5 @@
+package com.hmdp.service;
+
+public interface IIdWorker {
+    long nextId(String keyPrefix);
+}
@@ -3,6 +3,10 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
 
 /**
  * <p>
@@ -16,5 +20,23 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * @return false表示没能创建订单，比如数据库库存不足
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单并归还数据库库存
+     * @return 要归还redis库存和下单资格的订单：这次取消的（status还是未支付），
+     * 以及之前已经取消、用户没有再次下单的（status是已取消，上一次归还redis可能没完成）；已支付的订单不在其中
+     */
+    List<VoucherOrder> closeTimeoutOrders(List<Long> orderIds);
+
+    Result queryOrderStatus(Long orderId);
+
+    DeferredResult<Result> pollOrderStatus(Long orderId, long timeoutSeconds);
+
+    SseEmitter subscribeOrderStatus(Long orderId, long timeoutSeconds);
 }
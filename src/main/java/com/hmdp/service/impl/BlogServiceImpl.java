@@ -16,6 +16,8 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -27,7 +29,9 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -47,6 +51,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private HotKeyDetector hotKeys;
 
     @Override
     public Result queryHotByBlog(Integer current) {
@@ -56,9 +64,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 批量查询用户
+        List<Long> userIds = records.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = new HashMap<>(userIds.size() * 2);
+        for (UserDTO user : userService.queryUserDTOs(userIds)) {
+            if(user != null){
+                users.put(user.getId(), user);
+            }
+        }
         records.forEach(blog -> {
-            this.queryBlogUser(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
             this.isBlogLiked(blog);
         });
         return Result.ok(records);
@@ -66,6 +85,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断一定不存在的id，不查数据库
+        if(!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)){
+            return Result.fail("博客不存在");
+        }
         Blog blog = getById(id);
         if(blog == null){
             return Result.fail("博客不存在");
@@ -100,18 +123,22 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         //判断当前登录用户是否已经点赞
         String key = RedisConstants.BLOG_LIKED_KEY + id;
+        hotKeys.record(key);
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         if(score == null){
             //如果未点赞
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
             if(isSuccess){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                //点赞列表变了，删除热点副本
+                hotKeys.invalidate(key);
             }
         }else{
             //如果已经点赞了
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id",id).update();
             if(isSuccess){
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                hotKeys.invalidate(key);
             }
         }
         return Result.ok();
@@ -120,8 +147,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Override
     public Result queryBlogLikes(Long id) {
         String key = RedisConstants.BLOG_LIKED_KEY + id;
+        //热点博客的点赞列表直接读本地副本
+        hotKeys.record(key);
+        Object copy = hotKeys.get(key);
+        if(copy != null){
+            return Result.ok(copy);
+        }
+        long version = hotKeys.version();
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key,0, 4);
         if(top5 == null || top5.isEmpty()){
+            hotKeys.put(key, Collections.emptyList(), version, Long.MAX_VALUE);
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
@@ -131,6 +166,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .stream()
                 .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
                 .collect(Collectors.toList());
+        hotKeys.put(key, userDTOs, version, Long.MAX_VALUE);
         return Result.ok(userDTOs);
     }
 
@@ -139,6 +175,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         blog.setUserId(userId);
         save(blog);
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         //保存后推送给粉丝
         //查询粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", userId).list();
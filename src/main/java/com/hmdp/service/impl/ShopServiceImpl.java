@@ -4,23 +4,30 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -37,6 +44,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -61,7 +70,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //逻辑过期解决缓存击穿问题
 //        Shop shop = queryWithLogicalExpire(id);
         Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY,id,
-                Shop.class,this::getById,20L, TimeUnit.SECONDS);
+                Shop.class,this::getById,RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
         return Result.ok(shop);
     }
 
@@ -93,47 +102,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     public Shop queryWithMutex(Long id){
-        //1.从redis中查询信息
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.查到，返回信息
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson,Shop.class);
-            return shop;
-        }
-        if(shopJson != null){
-            //isNotBlank判断是不是字符串，这里不等于null，代表一定是空值,等价于==""
-            return null;
-        }
-        //实现缓存重构
-        //获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //判断是否获取成功
-            if(!isLock) {
-                //失败，则休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //成功，从数据库中查数据
-            shop = getById(id);
-            //4.判断商户是否存在，不存在报错
-            if(shop == null){
-                //将控制写入redis
-                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-
-            //5.存在，写入redis，返回
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }catch (Exception e){
-            throw new RuntimeException(e);
-        }finally {
-            unLock(lockKey);
-        }
-        return shop;
+        //互斥锁解决缓存击穿，同一个节点上的并发请求合并成一次重建
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     public Shop queryWithLogicalExpire(Long id){
@@ -173,6 +144,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        //新商铺加入布隆过滤器，否则查询会被拦截
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -182,18 +161,31 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id不能为空");
         }
         updateById(shop);
-        stringRedisTemplate.delete(key);
+        //删除redis缓存，并通知所有节点删除一级缓存
+        cacheClient.delete(key);
         return Result.ok();
     }
 
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        //数据库只分页查id，商铺详情批量从缓存取
+        List<Long> ids = query().select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE))
+                .getRecords()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+        if(ids.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                Shop::getId, this::listByIds, RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        return Result.ok(shops.stream().filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
     public void saveShop2Redis(Long id,Long expireSeconds){
         //查询店铺数据
         Shop shop = getById(id);
-        //封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
+        //封装逻辑过期时间，写入Redis，编码方式和CacheClient读取时一致
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
@@ -1,30 +1,71 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IIdWorker;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.OrderTimeoutQueue;
+import com.hmdp.utils.OrderWal;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillScheduler;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 
 @Service
@@ -33,11 +74,59 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService iSeckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IIdWorker idWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+    @Resource
+    private SeckillScheduler seckillScheduler;
+    @Resource
+    private OrderWal orderWal;
+    @Resource
+    private OrderStatusCache orderStatusCache;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+    //消费线程里拿不到AopContext，这里直接注入代理对象，保证createVoucherOrder的事务生效
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    @Value("${hmdp.seckill.order.group:g1}")
+    private String groupName;
+    @Value("${hmdp.seckill.order.consumer:c1}")
+    private String consumerName;
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int workers;
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.order.batch-wait-ms:50}")
+    private long batchWaitMs;
+    @Value("${hmdp.seckill.order.max-deliveries:10}")
+    private long maxDeliveries;
+
+    private final DistributionSummary batchSizeSummary;
+    private final Timer batchLatency;
+    private final Timer queueLatency;
+    private final Counter batchFallback;
+    private final Counter deadLetters;
+
+    public VoucherOrderServiceImpl(MeterRegistry meterRegistry) {
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每批落库的订单数").register(meterRegistry);
+        batchLatency = Timer.builder("seckill.order.batch.latency")
+                .description("一批订单落库耗时").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        queueLatency = Timer.builder("seckill.order.queue.latency")
+                .description("订单从入队到被消费的耗时").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        batchFallback = Counter.builder("seckill.order.batch.fallback")
+                .description("批量落库失败后退回逐个下单的批次数").register(meterRegistry);
+        deadLetters = Counter.builder("seckill.order.dead.letter")
+                .description("投递次数超过上限转入死信队列的订单数").register(meterRegistry);
+    }
 
     public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -45,56 +134,276 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
+    public static final DefaultRedisScript<Long> SECKILL_LEASE_ORDER_SCRIPT;
+    static {
+        SECKILL_LEASE_ORDER_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_LEASE_ORDER_SCRIPT.setLocation(new ClassPathResource("seckill_lease_order.lua"));
+        SECKILL_LEASE_ORDER_SCRIPT.setResultType(Long.class);
+    }
+    public static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
+    public static final DefaultRedisScript<Long> SECKILL_SHARD_TAKE_SCRIPT;
+    static {
+        SECKILL_SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SECKILL_SHARD_TAKE_SCRIPT.setResultType(Long.class);
+    }
 
-    //创建阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024);
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 长轮询和SSE最多等待的时间
+     */
+    private static final long MAX_STATUS_TIMEOUT_SECONDS = 60L;
+    /**
+     * pending-list处理失败后的重试间隔，连续失败时翻倍，最多等这么久
+     */
+    private static final long PENDING_RETRY_MIN_MILLIS = 20L;
+    private static final long PENDING_RETRY_MAX_MILLIS = 5000L;
 
-    IVoucherOrderService proxy;
+    private ExecutorService seckillOrderExecutor;
+    private volatile boolean running = true;
 
     //让类一初始化就执行这个任务
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //每个分区一个消息队列、一个消费线程
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            String streamKey = RedisConstants.SECKILL_ORDER_STREAM_KEY + ":" + i;
+            createGroupIfAbsent(streamKey);
+            seckillOrderExecutor.submit(new VoucherOrderHandler(streamKey));
+        }
     }
 
+    @PreDestroy
+    private void destroy(){
+        //停止消费，未确认的消息留在pending-list中，下次启动时重新处理
+        running = false;
+        seckillOrderExecutor.shutdown();
+    }
 
+    /**
+     * 按用户id把订单路由到固定分区，在一个节点内同一个用户的订单总是由同一个消费线程按顺序处理
+     * 多个节点共用一个消费者组，不同节点可能同时处理同一个用户的订单，一人一单最终由数据库的唯一索引保证
+     */
+    private String orderStreamKey(Long userId){
+        return RedisConstants.SECKILL_ORDER_STREAM_KEY + ":" + Math.floorMod(userId.hashCode(), workers);
+    }
+
+    private void createGroupIfAbsent(String streamKey){
+        //XGROUP CREATE stream.orders:0 g1 0 MKSTREAM
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8),
+                    groupName, ReadOffset.from("0"), true));
+        } catch (DataAccessException e) {
+            //消费者组已经存在
+            if(!String.valueOf(e.getMessage()).contains("BUSYGROUP")){
+                throw e;
+            }
+        }
+    }
 
     private class VoucherOrderHandler implements Runnable{
+        private final String streamKey;
+
+        private VoucherOrderHandler(String streamKey) {
+            this.streamKey = streamKey;
+        }
+
         @Override
         public void run() {
-            while (true){
-                //获取队列中的订单信息
+            //先处理上次宕机时已读取但未确认的消息
+            handlePendingList();
+            while (running){
                 try {
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //创建订单
-                    handlerVoucherOrder(voucherOrder);
-                } catch (InterruptedException e) {
-                    log.error("创建订单异常",e);
+                    //凑够一批或者等待超时后再批量落库
+                    List<MapRecord<String, Object, Object>> list = drainBatch();
+                    //没有消息，继续下一次循环
+                    if(list.isEmpty()){
+                        continue;
+                    }
+                    //创建订单，并ACK确认
+                    handleRecords(list);
+                } catch (Exception e) {
+                    log.error("处理订单异常",e);
+                    handlePendingList();
                 }
             }
         }
-    }
 
-    private void handlerVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        //boolean success = lock.tryLock(1200L);
-        boolean success = lock.tryLock();
-        //加锁失败
-        if(!success){
-            //异步执行，这里没必要返回给前端，前面已经判断过了，这里也几乎不会出错
-            log.error("不允许重复下单");
-            return ;
+        private List<MapRecord<String, Object, Object>> drainBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            //还没有订单时最多阻塞2秒，拿到第一条订单后最多再等batchWaitMs
+            Duration block = Duration.ofSeconds(2);
+            long deadline = 0;
+            while (running && batch.size() < batchSize){
+                //获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK ms STREAMS stream.orders:0 >
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(groupName, consumerName),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(block),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                );
+                if(list == null || list.isEmpty()){
+                    break;
+                }
+                if(batch.isEmpty()){
+                    deadline = System.currentTimeMillis() + batchWaitMs;
+                }
+                batch.addAll(list);
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    break;
+                }
+                block = Duration.ofMillis(remaining);
+            }
+            return batch;
         }
-        try {
 
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            lock.unlock();
+        private void handlePendingList() {
+            int failures = 0;
+            while (running){
+                try {
+                    //获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders:0 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(groupName, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(streamKey, ReadOffset.from("0"))
+                    );
+                    //pending-list中没有消息，结束
+                    if(list == null || list.isEmpty()){
+                        break;
+                    }
+                    //一直失败的消息转入死信队列，不再阻塞这个分区
+                    list = deadLetter(list);
+                    if(list.isEmpty() || handlePendingRecords(list)){
+                        failures = 0;
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常",e);
+                }
+                //数据库短暂不可用时不要很快把投递次数用完
+                try {
+                    Thread.sleep(Math.min(PENDING_RETRY_MAX_MILLIS, PENDING_RETRY_MIN_MILLIS << Math.min(failures++, 10)));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 整批失败时逐条处理，只有出问题的消息留在pending-list里累积投递次数
+         * @return true表示全部处理成功
+         */
+        private boolean handlePendingRecords(List<MapRecord<String, Object, Object>> list) {
+            try {
+                handleRecords(list);
+                return true;
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常，size={}", list.size(), e);
+                if(list.size() == 1){
+                    return false;
+                }
+            }
+            boolean success = true;
+            for (MapRecord<String, Object, Object> record : list) {
+                try {
+                    handleRecords(Collections.singletonList(record));
+                } catch (Exception e) {
+                    success = false;
+                    log.error("处理pending-list订单异常，id={}", record.getId(), e);
+                }
+            }
+            return success;
+        }
+
+        /**
+         * 投递次数超过max-deliveries的消息写入死信队列并ACK，返回剩下的消息
+         * 死信里的订单不改状态也不确认本地日志，排查之后手动重新投递，或者等预写日志重放
+         */
+        private List<MapRecord<String, Object, Object>> deadLetter(List<MapRecord<String, Object, Object>> list) {
+            if(maxDeliveries <= 0){
+                return list;
+            }
+            //XPENDING stream.orders:0 g1 firstId lastId n c1，每次从pending-list读取都会让投递次数加一
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                    Consumer.from(groupName, consumerName),
+                    Range.closed(list.get(0).getId().getValue(), list.get(list.size() - 1).getId().getValue()),
+                    list.size());
+            Map<String, Long> deliveries = new HashMap<>();
+            for (PendingMessage message : pending) {
+                deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount());
+            }
+            List<MapRecord<String, Object, Object>> rest = new ArrayList<>(list.size());
+            for (MapRecord<String, Object, Object> record : list) {
+                long count = deliveries.getOrDefault(record.getId().getValue(), 0L);
+                if(count <= maxDeliveries){
+                    rest.add(record);
+                    continue;
+                }
+                //先写死信再ACK，宕机时最多在死信里重复一条
+                Map<String, String> value = new LinkedHashMap<>();
+                record.getValue().forEach((k, v) -> value.put(String.valueOf(k), String.valueOf(v)));
+                value.put("stream", streamKey);
+                value.put("recordId", record.getId().getValue());
+                value.put("deliveries", String.valueOf(count));
+                stringRedisTemplate.opsForStream().add(StreamRecords.string(value).withStreamKey(RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY));
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, groupName, record.getId());
+                deadLetters.increment();
+                log.error("订单消息投递{}次仍然失败，转入死信队列，stream={}，id={}，order={}", count, streamKey, record.getId(), value);
+            }
+            return rest;
+        }
+
+        private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            RecordId[] recordIds = new RecordId[list.size()];
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> record = list.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+                //消息id的前半段就是入队的毫秒时间戳
+                queueLatency.record(now - record.getId().getTimestamp(), TimeUnit.MILLISECONDS);
+            }
+            long begin = System.nanoTime();
+            List<VoucherOrder> created = voucherOrders;
+            List<VoucherOrder> failed = Collections.emptyList();
+            try {
+                //一个事务里批量扣库存、批量插入订单
+                proxy.createVoucherOrders(voucherOrders);
+            } catch (Exception e) {
+                //整批失败，回滚后逐个下单，不让一个订单拖垮整批
+                log.error("批量创建订单失败，改为逐个创建，size={}", voucherOrders.size(), e);
+                batchFallback.increment();
+                created = new ArrayList<>(voucherOrders.size());
+                failed = new ArrayList<>();
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    //不再加分布式锁：同一个节点内同一个用户的订单串行处理，跨节点的并发由唯一索引拦截
+                    (proxy.createVoucherOrder(voucherOrder) ? created : failed).add(voucherOrder);
+                }
+            }
+            batchLatency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            batchSizeSummary.record(voucherOrders.size());
+            //加入超时取消的延迟队列，失败时不ACK，消息重新投递时再加一次
+            orderTimeoutQueue.add(created);
+            //数据库事务提交之后再ACK确认 XACK stream.orders:0 g1 id...
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, groupName, recordIds);
+            //订单已经有结果，更新状态并通知等待的请求；状态写失败不影响订单，客户端查不到时会查数据库
+            try {
+                orderStatusCache.update(created, OrderStatusDTO.CREATED);
+                orderStatusCache.update(failed, OrderStatusDTO.FAILED);
+            } catch (Exception e) {
+                log.error("更新订单状态失败", e);
+            }
+            //落库结果已经确定，本地日志里的记录不再需要重放
+            orderWal.ack(created);
+            orderWal.ack(failed);
         }
     }
 
@@ -102,32 +411,234 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId){
         //1.执行lua脚本
         //2.判断购买资格
-        //3.将下单信息保存到阻塞队列中
+        //3.有资格，lua脚本直接把下单信息发送到消息队列中
         //4.返回订单id
+        //已经卖完的券直接在本地拒绝，不再访问redis
+        if(seckillSoldOutFlags.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //时间窗口外的请求在本地拒绝，lua脚本里再用redis的时间判断一次
+        SeckillScheduler.Window window = seckillScheduler.getWindow(voucherId);
+        if(window == null){
+            return Result.fail("秒杀券不存在");
+        }
+        long now = System.currentTimeMillis();
+        if(now < window.getBeginMillis()){
+            return Result.fail("秒杀尚未开始");
+        }
+        if(now > window.getEndMillis()){
+            return Result.fail("秒杀已经结束");
+        }
         Long userId = UserHolder.getUser().getId();
+        Long orderId = idWorker.nextId("order");
+        int shards = seckillStockShards.shardCount(voucherId);
+        if(shards > 1){
+            //热门券的库存拆在多个分片上
+            return seckillWithShards(voucherId, userId, orderId, shards, window);
+        }
+        if(seckillStockLease.isEnabled()){
+            //租约模式，库存在节点本地扣
+            return seckillWithLease(voucherId, userId, orderId, window);
+        }
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                Collections.emptyList(),
+                Arrays.asList(orderStreamKey(userId), OrderStatusCache.statusKey(orderId)),
                 voucherId.toString(),
-                userId.toString()
+                userId.toString(),
+                orderId.toString(),
+                RedisConstants.ORDER_STATUS_TTL.toString(),
+                String.valueOf(window.getBeginMillis()),
+                String.valueOf(window.getEndMillis())
         );
         int i = result.intValue();
+        if(i == 4 || i == 5){
+            return windowFail(i);
+        }
+        if(i == 1){
+            //第一次发现库存不足，标记售罄并通知其他节点
+            seckillSoldOutFlags.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
         if(i != 0){
-            return Result.fail(i == 1 ? "库存不足" : "用户重复下单");
-        }
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setVoucherId(voucherId);
-        voucherOrder.setUserId(userId);
-        Long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-
-        //放入阻塞队列
-        orderTasks.add(voucherOrder);
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+            return Result.fail("用户重复下单");
+        }
+        orderWal.append(orderId, userId, voucherId);
+        return Result.ok(orderId);
+    }
+
+    /**
+     * lua脚本返回4：秒杀尚未开始，5：秒杀已经结束
+     */
+    private static Result windowFail(int code){
+        return Result.fail(code == 4 ? "秒杀尚未开始" : "秒杀已经结束");
+    }
+
+    private Result seckillWithLease(Long voucherId, Long userId, Long orderId, SeckillScheduler.Window window){
+        //1.从本节点租到的额度里扣库存，不访问redis
+        //租不到库存时其他节点手里可能还有额度，不能标记全局售罄，本地的短暂拒绝由租约自己处理
+        if(!seckillStockLease.tryAcquire(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //2.在redis里判断全局的一人一单，并发送订单消息
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(
+                    SECKILL_LEASE_ORDER_SCRIPT,
+                    Arrays.asList(RedisConstants.SECKILL_ORDER_KEY + voucherId, RedisConstants.SECKILL_LEASE_KEY + voucherId,
+                            orderStreamKey(userId), OrderStatusCache.statusKey(orderId)),
+                    userId.toString(), voucherId.toString(), orderId.toString(), seckillStockLease.getNodeId(),
+                    RedisConstants.ORDER_STATUS_TTL.toString(),
+                    String.valueOf(window.getBeginMillis()), String.valueOf(window.getEndMillis())
+            );
+        } catch (RuntimeException e) {
+            seckillStockLease.release(voucherId);
+            throw e;
+        }
+        int r = result.intValue();
+        if(r != 0){
+            //重复下单或者不在时间窗口内，扣掉的库存还给本地额度
+            seckillStockLease.release(voucherId);
+            return r == 2 ? Result.fail("用户重复下单") : windowFail(r);
+        }
+        orderWal.append(orderId, userId, voucherId);
+        return Result.ok(orderId);
+    }
+
+    private Result seckillWithShards(Long voucherId, Long userId, Long orderId, int shards, SeckillScheduler.Window window){
+        //1.在用户固定的分片上判断一人一单并占住资格，本分片有库存就直接扣
+        int home = SeckillStockShards.homeShard(userId, shards);
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(SeckillStockShards.stockKey(voucherId, home), SeckillStockShards.orderKey(voucherId, home)),
+                userId.toString(), String.valueOf(window.getBeginMillis()), String.valueOf(window.getEndMillis())
+        );
+        int r = result.intValue();
+        if(r == 2){
+            return Result.fail("用户重复下单");
+        }
+        if(r == 4 || r == 5){
+            return windowFail(r);
+        }
+        //2.本分片已经卖完，依次去其他分片扣库存
+        int taken = r == 0 ? home : -1;
+        for (int i = 1; taken < 0 && i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long took = stringRedisTemplate.execute(
+                    SECKILL_SHARD_TAKE_SCRIPT,
+                    Collections.singletonList(SeckillStockShards.stockKey(voucherId, shard))
+            );
+            if(took != null && took == 0){
+                taken = shard;
+            }
+        }
+        if(taken < 0){
+            //所有分片都没有库存，释放占住的下单资格
+            stringRedisTemplate.opsForSet().remove(SeckillStockShards.orderKey(voucherId, home), userId.toString());
+            seckillSoldOutFlags.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        //3.分片和消息队列不在同一个slot上，单独发送订单消息
+        //扣库存和发送消息不是原子的：这之前宕机会丢一个库存并占住用户的资格；发送超时但其实成功时下面的补偿会多还一个库存。
+        //两种情况都由对账修复，库存分片的秒杀券默认按reconcile.sharded-interval-minutes对账并修复
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", orderId.toString());
+        String statusKey = OrderStatusCache.statusKey(orderId);
+        try {
+            //先写订单状态再发消息，消费者改状态时不会被覆盖回PENDING
+            Map<String, String> status = new HashMap<>(2);
+            status.put("status", OrderStatusDTO.PENDING);
+            status.put("userId", userId.toString());
+            stringRedisTemplate.opsForHash().putAll(statusKey, status);
+            stringRedisTemplate.expire(statusKey, RedisConstants.ORDER_STATUS_TTL, TimeUnit.SECONDS);
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(order).withStreamKey(orderStreamKey(userId)));
+        } catch (RuntimeException e) {
+            //订单没有进入队列，把库存和下单资格还回去
+            stringRedisTemplate.opsForValue().increment(SeckillStockShards.stockKey(voucherId, taken));
+            stringRedisTemplate.opsForSet().remove(SeckillStockShards.orderKey(voucherId, home), userId.toString());
+            stringRedisTemplate.delete(statusKey);
+            throw e;
+        }
+        orderWal.append(orderId, userId, voucherId);
         return Result.ok(orderId);
     }
 
+    @Override
+    public Result queryOrderStatus(Long orderId){
+        OrderStatusDTO status = findOrderStatus(orderId, UserHolder.getUser().getId());
+        if(status == null){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
+
+    @Override
+    public DeferredResult<Result> pollOrderStatus(Long orderId, long timeoutSeconds){
+        Long userId = UserHolder.getUser().getId();
+        DeferredResult<Result> result = new DeferredResult<>(statusTimeoutMillis(timeoutSeconds));
+        //先注册回调再查状态，查询之后才落库的订单也能收到通知
+        java.util.function.Consumer<OrderStatusDTO> callback = status -> result.setResult(Result.ok(status));
+        orderStatusCache.watch(orderId, callback);
+        result.onCompletion(() -> orderStatusCache.unwatch(orderId, callback));
+        OrderStatusDTO current = findOrderStatus(orderId, userId);
+        if(current == null){
+            result.setResult(Result.fail("订单不存在"));
+        }else if(current.isFinished()){
+            result.setResult(Result.ok(current));
+        }else{
+            //超时还没有结果，返回PENDING，客户端再发起下一次长轮询
+            result.onTimeout(() -> result.setResult(Result.ok(current)));
+        }
+        return result;
+    }
+
+    @Override
+    public SseEmitter subscribeOrderStatus(Long orderId, long timeoutSeconds){
+        Long userId = UserHolder.getUser().getId();
+        SseEmitter emitter = new SseEmitter(statusTimeoutMillis(timeoutSeconds));
+        java.util.function.Consumer<OrderStatusDTO> callback = status -> sendOrderStatus(emitter, Result.ok(status), true);
+        orderStatusCache.watch(orderId, callback);
+        emitter.onCompletion(() -> orderStatusCache.unwatch(orderId, callback));
+        OrderStatusDTO current = findOrderStatus(orderId, userId);
+        if(current == null){
+            sendOrderStatus(emitter, Result.fail("订单不存在"), true);
+        }else{
+            //先推一次当前状态，订单有结果时再推一次并结束
+            sendOrderStatus(emitter, Result.ok(current), current.isFinished());
+        }
+        return emitter;
+    }
+
+    private OrderStatusDTO findOrderStatus(Long orderId, Long userId){
+        OrderStatusDTO status = orderStatusCache.get(orderId, userId);
+        if(status != null){
+            return status;
+        }
+        //状态记录已经过期，按主键查一次数据库
+        VoucherOrder order = getById(orderId);
+        if(order == null || !userId.equals(order.getUserId())){
+            return null;
+        }
+        return new OrderStatusDTO(orderId, OrderStatusDTO.CREATED);
+    }
+
+    private long statusTimeoutMillis(long timeoutSeconds){
+        return TimeUnit.SECONDS.toMillis(Math.min(Math.max(timeoutSeconds, 1), MAX_STATUS_TIMEOUT_SECONDS));
+    }
+
+    private void sendOrderStatus(SseEmitter emitter, Result result, boolean complete){
+        try {
+            emitter.send(SseEmitter.event().name("status").data(result));
+            if(complete){
+                emitter.complete();
+            }
+        } catch (IOException | IllegalStateException e) {
+            //客户端已经断开，或者另一个线程已经推送过结果
+            log.debug("推送订单状态失败：{}", e.getMessage());
+        }
+    }
+
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //查询优惠券
@@ -178,14 +689,24 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //
 //    }
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder){
+    public boolean createVoucherOrder(VoucherOrder voucherOrder){
         Long userId = voucherOrder.getUserId();
-        //一人一单逻辑
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        //一人一单逻辑，超时取消的订单不算
+        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
+                .ne("status", SystemConstants.ORDER_STATUS_CANCELLED).count();
         if(count > 0){
-            //已经购买过了
-
+            //已经购买过了，消息重复投递时也会走到这里，这时订单本身已经创建
+            log.error("用户已经购买过一次，userId={}，voucherId={}", userId, voucherOrder.getVoucherId());
+            return query().eq("id", voucherOrder.getId()).count() > 0;
+        }
+        //先插入订单：多个节点同时处理同一个用户的订单时，上面的查询都查不到，由(voucher_id, user_id, cancel_id)唯一索引只放行一个
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            log.error("用户已经购买过一次，userId={}，voucherId={}", userId, voucherOrder.getVoucherId());
+            return query().eq("id", voucherOrder.getId()).count() > 0;
         }
         //扣减库存
         boolean success = iSeckillVoucherService.update()
@@ -196,12 +717,107 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if(!success){
 //            return Result.fail("库存不足");
             log.error("库存不足");
-            return;
+            //订单已经插入，回滚整个事务
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
-        save(voucherOrder);
         log.info("yes");
+        return true;
 
     }
 
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders){
+        //一人一单：先在批次内去重
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        //再用一条查询排除已经落库的订单（消息重复投递）
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existOrders = query().select("user_id", "voucher_id")
+                .in("voucher_id", voucherIds).in("user_id", userIds)
+                .ne("status", SystemConstants.ORDER_STATUS_CANCELLED).list();
+        for (VoucherOrder existOrder : existOrders) {
+            orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId());
+        }
+        if(orderMap.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> orders = new ArrayList<>(orderMap.values());
+        //按优惠券聚合，每个优惠券只执行一次 stock = stock - k
+        Map<Long, Long> stockMap = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : stockMap.entrySet()) {
+            long k = entry.getValue();
+            boolean success = iSeckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k)
+                    .update();
+            if(!success){
+                //库存不够整批扣减，回滚整批，交给逐个下单处理
+                throw new IllegalStateException("库存不足，voucherId=" + entry.getKey() + "，需要扣减" + k);
+            }
+        }
+        //一条多值insert写入整批订单；其他节点并发写入了同一个用户的订单时唯一索引冲突，整批回滚后逐个下单
+        getBaseMapper().insertBatch(orders);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> closeTimeoutOrders(List<Long> orderIds){
+        //锁住还没支付的订单，避免和支付同时修改
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds).eq("status", SystemConstants.ORDER_STATUS_UNPAID)
+                .last("for update").list();
+        if(!orders.isEmpty()){
+            List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            //cancel_id改成订单id，让出唯一索引，用户可以重新下单
+            update().set("status", SystemConstants.ORDER_STATUS_CANCELLED).setSql("cancel_id = id")
+                    .in("id", ids).eq("status", SystemConstants.ORDER_STATUS_UNPAID).update();
+            //按优惠券聚合，每个优惠券只执行一次 stock = stock + k
+            Map<Long, Long> stockMap = orders.stream()
+                    .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+            for (Map.Entry<Long, Long> entry : stockMap.entrySet()) {
+                iSeckillVoucherService.update()
+                        .setSql("stock = stock + " + entry.getValue())
+                        .eq("voucher_id", entry.getKey())
+                        .update();
+            }
+        }
+        if(orders.size() < orderIds.size()){
+            //上一次领取时已经取消了，但归还redis之前失败或者宕机，这次重新领取，再归还一次
+            orders = new ArrayList<>(orders);
+            orders.addAll(cancelledWithoutLiveOrder(orderIds));
+        }
+        return orders;
+    }
+
+    /**
+     * 已经取消的订单里，用户没有再次下单的；再次下单了的话redis里的下单资格属于新订单，不能释放
+     */
+    private List<VoucherOrder> cancelledWithoutLiveOrder(List<Long> orderIds){
+        List<VoucherOrder> cancelled = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds).eq("status", SystemConstants.ORDER_STATUS_CANCELLED).list();
+        List<VoucherOrder> result = new ArrayList<>(cancelled.size());
+        Map<Long, List<VoucherOrder>> byVoucher = cancelled.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<Long> userIds = entry.getValue().stream().map(VoucherOrder::getUserId).collect(Collectors.toList());
+            Set<Long> live = query().select("user_id")
+                    .eq("voucher_id", entry.getKey()).in("user_id", userIds)
+                    .ne("status", SystemConstants.ORDER_STATUS_CANCELLED).list()
+                    .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            for (VoucherOrder order : entry.getValue()) {
+                if(!live.contains(order.getUserId())){
+                    result.add(order);
+                }
+            }
+        }
+        return result;
+    }
+
 
 }
@@ -7,10 +7,13 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillScheduler;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -29,7 +32,11 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+    @Resource
+    private SeckillScheduler seckillScheduler;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,7 +58,18 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库到redis中，热门券按分片数拆到多个key上
+        Integer shards = voucher.getStockShards();
+        seckillStockShards.init(voucher.getId(), voucher.getStock(), shards == null ? 1 : shards);
+        //库存补充之后清除售罄标记
+        seckillSoldOutFlags.clear(voucher.getId());
+        //事务提交后再通知各节点安排秒杀日程，否则其他节点可能查不到这个券
+        Long voucherId = voucher.getId();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seckillScheduler.publish(voucherId);
+            }
+        });
     }
 }
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 运维接口的访问控制：没有开启时返回404；只允许本机访问时，其他地址返回403。
+ * 运维接口会扫全表、批量改写redis，不能只靠普通用户的登录
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+    private final boolean enabled;
+    private final boolean localOnly;
+
+    public AdminInterceptor(boolean enabled, boolean localOnly) {
+        this.enabled = enabled;
+        this.localOnly = localOnly;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if(!enabled){
+            response.setStatus(404);
+            return false;
+        }
+        if(localOnly && !isLoopback(request.getRemoteAddr())){
+            response.setStatus(403);
+            response.setContentType("application/json;charset=UTF-8");
+            response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("只允许本机访问")).getBytes(StandardCharsets.UTF_8));
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isLoopback(String address){
+        try {
+            //remoteAddr是ip，不会触发dns查询
+            return address != null && InetAddress.getByName(address).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制格式：
+ * <pre>
+ * 0xFF | 版本(1) | 类结构哈希(4) | 逻辑过期时间毫秒(8) | 数据
+ * </pre>
+ * 逻辑过期时间是固定长度的头部，不用像RedisData那样先解析一遍外层对象。
+ * 对象按字段声明顺序写，前面是一个标记null字段的位图，整数用zigzag变长编码，没有字段名；
+ * 类的字段变了之后哈希对不上，旧值当作没有命中，重建后写入新结构
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    //UTF-8里不会出现0xFF，和json格式区分开
+    public static final byte MAGIC = (byte) 0xFF;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 14;
+
+    private static final Map<Class<?>, ValueType> SCALARS = new HashMap<>();
+    private static final ClassValue<Schema> SCHEMAS = new ClassValue<Schema>() {
+        @Override
+        protected Schema computeValue(Class<?> type) {
+            return Schema.of(type);
+        }
+    };
+
+    @Override
+    public boolean accepts(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        Schema schema = SCHEMAS.get(value.getClass());
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(schema.hash);
+        out.writeLong(expireAt);
+        schema.write(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> Decoded<R> decode(byte[] bytes, Class<R> type, boolean logical) {
+        if(!accepts(bytes)){
+            return null;
+        }
+        Schema schema = SCHEMAS.get(type);
+        Input in = new Input(bytes, 2);
+        if(in.readInt() != schema.hash){
+            return null;
+        }
+        long expireAt = in.readLong();
+        try {
+            return new Decoded<>(type.cast(schema.read(in)), expireAt);
+        } catch (RuntimeException e) {
+            //数据被截断或者被别的程序改过
+            return null;
+        }
+    }
+
+    /**
+     * 一种值的读写方式
+     */
+    private interface ValueType {
+        void write(Output out, Object value);
+
+        Object read(Input in);
+    }
+
+    static {
+        ValueType longType = scalar((out, v) -> out.writeVarLong(zigzag((Long) v)), in -> unzigzag(in.readVarLong()));
+        ValueType intType = scalar((out, v) -> out.writeVarLong(zigzag((Integer) v)), in -> (int) unzigzag(in.readVarLong()));
+        ValueType shortType = scalar((out, v) -> out.writeVarLong(zigzag((Short) v)), in -> (short) unzigzag(in.readVarLong()));
+        ValueType byteType = scalar((out, v) -> out.writeByte((Byte) v), Input::readByte);
+        ValueType doubleType = scalar((out, v) -> out.writeLong(Double.doubleToRawLongBits((Double) v)), in -> Double.longBitsToDouble(in.readLong()));
+        ValueType floatType = scalar((out, v) -> out.writeInt(Float.floatToRawIntBits((Float) v)), in -> Float.intBitsToFloat(in.readInt()));
+        ValueType booleanType = scalar((out, v) -> out.writeByte((Boolean) v ? 1 : 0), in -> in.readByte() != 0);
+        ValueType charType = scalar((out, v) -> out.writeVarLong((Character) v), in -> (char) in.readVarLong());
+        SCALARS.put(Long.class, longType);
+        SCALARS.put(long.class, longType);
+        SCALARS.put(Integer.class, intType);
+        SCALARS.put(int.class, intType);
+        SCALARS.put(Short.class, shortType);
+        SCALARS.put(short.class, shortType);
+        SCALARS.put(Byte.class, byteType);
+        SCALARS.put(byte.class, byteType);
+        SCALARS.put(Double.class, doubleType);
+        SCALARS.put(double.class, doubleType);
+        SCALARS.put(Float.class, floatType);
+        SCALARS.put(float.class, floatType);
+        SCALARS.put(Boolean.class, booleanType);
+        SCALARS.put(boolean.class, booleanType);
+        SCALARS.put(Character.class, charType);
+        SCALARS.put(char.class, charType);
+        SCALARS.put(String.class, scalar((out, v) -> out.writeString((String) v), Input::readString));
+        SCALARS.put(BigDecimal.class, scalar((out, v) -> out.writeString(v.toString()), in -> new BigDecimal(in.readString())));
+        SCALARS.put(Date.class, scalar((out, v) -> out.writeVarLong(zigzag(((Date) v).getTime())), in -> new Date(unzigzag(in.readVarLong()))));
+        SCALARS.put(LocalDate.class, scalar((out, v) -> out.writeVarLong(zigzag(((LocalDate) v).toEpochDay())),
+                in -> LocalDate.ofEpochDay(unzigzag(in.readVarLong()))));
+        //按UTC换算成秒和纳秒，只是编码方式，不涉及时区
+        SCALARS.put(LocalDateTime.class, scalar((out, v) -> {
+            LocalDateTime time = (LocalDateTime) v;
+            out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+            out.writeVarLong(time.getNano());
+        }, in -> LocalDateTime.ofEpochSecond(unzigzag(in.readVarLong()), (int) in.readVarLong(), ZoneOffset.UTC)));
+    }
+
+    private interface Writer {
+        void write(Output out, Object value);
+    }
+
+    private interface Reader {
+        Object read(Input in);
+    }
+
+    private static ValueType scalar(Writer writer, Reader reader){
+        return new ValueType() {
+            @Override
+            public void write(Output out, Object value) {
+                writer.write(out, value);
+            }
+
+            @Override
+            public Object read(Input in) {
+                return reader.read(in);
+            }
+        };
+    }
+
+    /**
+     * 不认识的类型（集合、嵌套对象等）退回json，写成字符串
+     */
+    private static ValueType json(Type type){
+        return scalar((out, v) -> out.writeString(JSONUtil.toJsonStr(v)), in -> JSONUtil.toBean(in.readString(), type, false));
+    }
+
+    private static ValueType typeOf(Class<?> type, Type genericType){
+        ValueType scalar = SCALARS.get(type);
+        if(scalar != null){
+            return scalar;
+        }
+        if(type.isEnum()){
+            Object[] constants = type.getEnumConstants();
+            return scalar((out, v) -> out.writeVarLong(((Enum<?>) v).ordinal()), in -> constants[(int) in.readVarLong()]);
+        }
+        return json(genericType);
+    }
+
+    /**
+     * 一个类的编码方式：基本类型和字符串直接写；普通java对象按字段写；其他类型写成json
+     */
+    private static class Schema {
+        private final int hash;
+        //单个值的写法，按字段写的对象为null
+        private final ValueType self;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final ValueType[] types;
+
+        private Schema(int hash, ValueType self, Constructor<?> constructor, Field[] fields, ValueType[] types) {
+            this.hash = hash;
+            this.self = self;
+            this.constructor = constructor;
+            this.fields = fields;
+            this.types = types;
+        }
+
+        private static Schema of(Class<?> type){
+            if(SCALARS.containsKey(type) || type.isEnum() || type.isArray()){
+                return new Schema(type.getName().hashCode(), typeOf(type, type), null, null, null);
+            }
+            //写入时是具体的实现类，读取时通常传接口，哈希只区分是集合还是Map
+            if(Collection.class.isAssignableFrom(type)){
+                return new Schema(Collection.class.getName().hashCode(), json(type), null, null, null);
+            }
+            if(Map.class.isAssignableFrom(type)){
+                return new Schema(Map.class.getName().hashCode(), json(type), null, null, null);
+            }
+            Constructor<?> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                //没有无参构造，整个对象写成json
+                return new Schema(type.getName().hashCode(), json(type), null, null, null);
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                List<Field> declared = new ArrayList<>();
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()){
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    declared.add(field);
+                }
+                //父类的字段在前
+                fields.addAll(0, declared);
+            }
+            ValueType[] types = new ValueType[fields.size()];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < types.length; i++) {
+                Field field = fields.get(i);
+                types[i] = typeOf(field.getType(), field.getGenericType());
+                signature.append(';').append(field.getName()).append(':').append(field.getGenericType().getTypeName());
+            }
+            return new Schema(signature.toString().hashCode(), null, constructor, fields.toArray(new Field[0]), types);
+        }
+
+        private void write(Output out, Object value){
+            if(self != null){
+                self.write(out, value);
+                return;
+            }
+            try {
+                //null字段的位图
+                byte[] nulls = new byte[(fields.length + 7) / 8];
+                Object[] values = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = fields[i].get(value);
+                    if(values[i] == null){
+                        nulls[i >>> 3] |= 1 << (i & 7);
+                    }
+                }
+                out.writeBytes(nulls);
+                for (int i = 0; i < fields.length; i++) {
+                    if(values[i] != null){
+                        types[i].write(out, values[i]);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private Object read(Input in){
+            if(self != null){
+                return self.read(in);
+            }
+            try {
+                Object value = constructor.newInstance();
+                byte[] nulls = in.readBytes((fields.length + 7) / 8);
+                for (int i = 0; i < fields.length; i++) {
+                    if((nulls[i >>> 3] & (1 << (i & 7))) == 0){
+                        fields[i].set(value, types[i].read(in));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static long zigzag(long v){
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v){
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int size;
+
+        private Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        private void ensure(int n){
+            if(size + n > buf.length){
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        private void writeByte(int b){
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void writeBytes(byte[] bytes){
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeInt(int v){
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        private void writeLong(long v){
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        private void writeVarLong(long v){
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void writeString(String s){
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        private byte[] toByteArray(){
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        private Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private byte readByte(){
+            return buf[pos++];
+        }
+
+        private byte[] readBytes(int n){
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        private int readInt(){
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong(){
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readVarLong(){
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if(b >= 0){
+                    return v;
+                }
+            }
+        }
+
+        private String readString(){
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
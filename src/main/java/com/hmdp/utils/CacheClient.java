@@ -2,150 +2,626 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
 public class CacheClient {
     //封装redis工具类
     private final StringRedisTemplate stringRedisTemplate;
+    //一级缓存，只对配置了的key前缀生效
+    private final LocalCache localCache;
+    private final HotKeyDetector hotKeys;
+    //拦截一定不存在的id
+    private final IdBloomFilter idBloomFilter;
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec binaryCodec = new BinaryCacheCodec();
+    //写入用的编码
+    private final CacheCodec writeCodec;
+    //迁移模式：两种格式都能读
+    private final boolean readBoth;
+
+    //getPlain没有命中
+    private static final Object MISS = new Object();
+    //重建锁的过期时间，重建线程挂掉时最多锁这么久
+    private static final long LOCK_TTL_SECONDS = 300;
+    //同一个key的并发加载只查一次数据库
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final MeterRegistry meterRegistry;
+    //没抢到重建锁时最多等多久
+    private final long mutexWaitMs;
+    //XFetch提前重建的系数，0表示不提前
+    private final double earlyRefreshBeta;
+    private final double ttlJitter;
+    //key前缀 -> 平均重建耗时
+    private final Map<String, RebuildCost> rebuildCosts = new ConcurrentHashMap<>();
 
     public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache, HotKeyDetector hotKeys,
+                       IdBloomFilter idBloomFilter, MeterRegistry meterRegistry,
+                       @Value("${hmdp.cache.codec.type:binary}") String codecType,
+                       @Value("${hmdp.cache.codec.read-both:true}") boolean readBoth,
+                       @Value("${hmdp.cache.mutex-wait-ms:3000}") long mutexWaitMs,
+                       @Value("${hmdp.cache.early-refresh-beta:1.0}") double earlyRefreshBeta,
+                       @Value("${hmdp.cache.ttl-jitter:0.1}") double ttlJitter) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.hotKeys = hotKeys;
+        this.idBloomFilter = idBloomFilter;
+        this.writeCodec = "json".equals(codecType) ? jsonCodec : binaryCodec;
+        this.readBoth = readBoth;
+        this.meterRegistry = meterRegistry;
+        this.mutexWaitMs = mutexWaitMs;
+        this.earlyRefreshBeta = earlyRefreshBeta;
+        this.ttlJitter = ttlJitter;
     }
 
     public void set(String key,Object value,Long time,TimeUnit unit){
-        //方法1：将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(value),time,unit);
+        //方法1：将任意Java对象序列化并存储在string类型的key中，并且可以设置TTL过期时间
+        setBytes(key, writeCodec.encode(value, CacheCodec.NO_EXPIRE), Expiration.milliseconds(jitter(unit.toMillis(time))));
+        invalidateLocal(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //方法2：将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        //不确定传进来的时间单位，将其转成秒
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        String json = JSONUtil.toJsonStr(redisData);
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,json);
+        //方法2：将任意Java对象序列化并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        //写入redis，不设置TTL
+        setBytes(key, writeCodec.encode(value, expireAt), Expiration.persistent());
+        invalidateLocal(key);
+    }
+
+    public void delete(String key){
+        //删除缓存，并通知所有节点删除一级缓存里的副本
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除一级缓存和热点key的本地副本，并通知其他节点
+     */
+    private void invalidateLocal(String key){
+        localCache.invalidate(key);
+        hotKeys.invalidate(key);
+    }
+
+    private byte[] getBytes(String key){
+        //值可能是二进制格式，不经过StringRedisTemplate的字符串序列化
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration){
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 按第一个字节判断是哪种格式；不是写入用的格式并且没有打开迁移模式时当作没有命中
+     */
+    private <R> CacheCodec.Decoded<R> decode(byte[] bytes, Class<R> type, boolean logical){
+        CacheCodec codec = binaryCodec.accepts(bytes) ? binaryCodec : jsonCodec;
+        if(codec != writeCodec && !readBoth){
+            return null;
+        }
+        return codec.decode(bytes, type, logical);
     }
 
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallBack,Long time,TimeUnit unit){
         //方法3：根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
-        String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String stringJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if(StrUtil.isNotBlank(stringJson)){
-            //存在，直接返回
-            return JSONUtil.toBean(stringJson,type);
-        }
-        // 判断命中的是否是空值
-        if(stringJson != null){
-            //是空值，返回null
+        //布隆过滤器判断id一定不存在，不查redis和数据库
+        if(idBloomFilter.rejects(keyPrefix, id)){
             return null;
         }
-        // 4.不存在，根据id查询数据库
-        R r = dbFallBack.apply(id);
-        // 5.不存在，返回错误
-        if(r == null){
-            return null;
+        String key = keyPrefix + id;
+        // 1.查一级缓存和redis，命中了值或者空值都直接返回
+        Object cached = getPlain(key, type, localCache.region(keyPrefix));
+        if(cached != MISS){
+            return cached == LocalCache.NULL ? null : type.cast(cached);
         }
-        // 6.存在，写入redis
-        set(key,r,time,unit);
-        return r;
+        // 2.不存在，根据id查询数据库，本节点同一个key的并发请求只查一次
+        return singleFlight.execute(key, () -> {
+            R r = dbFallBack.apply(id);
+            // 3.不存在，缓存空值
+            if(r == null){
+                setNull(key);
+                return null;
+            }
+            // 4.存在，写入redis
+            set(key,r,time,unit);
+            return r;
+        }, () -> coalesced(keyPrefix));
+    }
+
+    /**
+     * 查一级缓存和redis里的普通格式的值，redis命中了回填一级缓存
+     * @return MISS表示都没有命中，LocalCache.NULL表示命中了缓存的空值
+     */
+    private Object getPlain(String key, Class<?> type, LocalCache.Region l1){
+        //热点key直接读本地副本
+        hotKeys.record(key);
+        Object copy = hotKeys.get(key);
+        if(copy != null){
+            return copy;
+        }
+        long hotVersion = hotKeys.version();
+        long version = 0;
+        if(l1 != null){
+            Object cached = l1.get(key);
+            if(cached != null){
+                return cached;
+            }
+            version = l1.version();
+        }
+        byte[] bytes = getBytes(key);
+        if(l1 != null){
+            l1.recordL2(bytes != null);
+        }
+        if(bytes == null){
+            return MISS;
+        }
+        Object value;
+        if(bytes.length == 0){
+            value = LocalCache.NULL;
+        }else{
+            CacheCodec.Decoded<?> decoded = decode(bytes, type, false);
+            if(decoded == null){
+                //格式对不上，当作没有命中，重建后覆盖
+                return MISS;
+            }
+            value = decoded.getValue();
+        }
+        if(l1 != null){
+            l1.put(key, value, version, Long.MAX_VALUE);
+        }
+        hotKeys.put(key, value, hotVersion, Long.MAX_VALUE);
+        return value;
+    }
+
+    private void setNull(String key){
+        setBytes(key, new byte[0], Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES));
+        invalidateLocal(key);
+    }
+
+    private void coalesced(String keyPrefix){
+        meterRegistry.counter("cache.loads.coalesced", "prefix", keyPrefix).increment();
     }
 
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallBack,Long time,TimeUnit unit){
+        if(idBloomFilter.rejects(keyPrefix, id)){
+            return null;
+        }
         //1.从redis中查询信息
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(json)){
+        //热点key的本地副本和一级缓存里只放没有逻辑过期的数据，命中了直接返回，不用再反序列化
+        hotKeys.record(key);
+        Object copy = hotKeys.get(key);
+        if(copy != null){
+            return copy == LocalCache.NULL ? null : type.cast(copy);
+        }
+        long hotVersion = hotKeys.version();
+        LocalCache.Region l1 = localCache.region(keyPrefix);
+        long version = 0;
+        if(l1 != null){
+            Object cached = l1.get(key);
+            if(cached != null){
+                return type.cast(cached);
+            }
+            version = l1.version();
+        }
+        byte[] bytes = getBytes(key);
+        if(l1 != null){
+            l1.recordL2(bytes != null && bytes.length > 0);
+        }
+        if(bytes == null || bytes.length == 0){
             return null;
         }
-        //命中，将json对象反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
-        LocalDateTime expire = redisData.getExpireTime();
+        //命中，反序列化为对象
+        CacheCodec.Decoded<R> decoded = decode(bytes, type, true);
+        if(decoded == null){
+            //格式对不上（比如类的字段变了，或者迁移期间关闭了read-both），没有旧值可以先返回，
+            //同步查数据库并按当前格式写回，本节点同一个key的并发请求只查一次
+            return singleFlight.execute(key, () -> {
+                R loaded = dbFallBack.apply(id);
+                if(loaded == null){
+                    setNull(key);
+                }else{
+                    setWithLogicalExpire(key, loaded, time, unit);
+                }
+                return loaded;
+            }, () -> coalesced(keyPrefix));
+        }
+        R r = decoded.getValue();
         //实现缓存重构
         //判断缓存是否过期
-        if(expire.isAfter(LocalDateTime.now())){
+        long now = System.currentTimeMillis();
+        if(decoded.getExpireAt() > now){
+            if(l1 != null){
+                l1.put(key, r, version, decoded.getExpireAt());
+            }
+            hotKeys.put(key, r, hotVersion, decoded.getExpireAt());
+            //还没过期，快过期时按概率提前重建，重建期间其他请求仍然读到没过期的值
+            if(refreshEarly(keyPrefix, decoded.getExpireAt(), now)){
+                meterRegistry.counter("cache.refresh.early", "prefix", keyPrefix).increment();
+                rebuild(keyPrefix, key, id, dbFallBack, time, unit);
+            }
             return r;
         }
-        //已过期，缓存重构，获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        //已过期，先返回旧值，在后台重建
+        rebuild(keyPrefix, key, id, dbFallBack, time, unit);
+        return r;
+    }
+
+    /**
+     * 获取互斥锁，抢到了在后台重建，记录重建耗时
+     */
+    private <R,ID> void rebuild(String keyPrefix, String key, ID id, Function<ID,R> dbFallBack, Long time, TimeUnit unit){
+        String lockKey = lockKey(key);
         boolean isLock = tryLock(lockKey);
         //判断获取锁是否成功
-        if(isLock){
-            System.out.println(stringRedisTemplate.opsForValue().get(lockKey));
-            //新建一个线程进行重构
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-               try{
-                   //先查数据库
-                   R r2 = dbFallBack.apply(id);
-                   //再写入redis
+        if(!isLock){
+            return;
+        }
+        //新建一个线程进行重构
+        CACHE_REBUILD_EXECUTOR.submit(()->{
+           long begin = System.nanoTime();
+           try{
+               //先查数据库
+               R r2 = dbFallBack.apply(id);
+               //再写入redis，数据已经删除时写入空值
+               if(r2 == null){
+                   setNull(key);
+               }else{
                    setWithLogicalExpire(key,r2,time,unit);
-               }catch (Exception e){
-                   throw new RuntimeException(e);
-               }finally {
-                   unLock(lockKey);
                }
-            });
+               recordRebuild(keyPrefix, System.nanoTime() - begin);
+           }catch (Exception e){
+               throw new RuntimeException(e);
+           }finally {
+               unLock(lockKey);
+           }
+        });
+    }
+
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= expireAt 时提前重建，delta是这个前缀平均的重建耗时
+     * 离过期越近、重建越慢，提前重建的概率越大；每个请求独立抽样，不同节点、不同key的重建自然错开
+     */
+    private boolean refreshEarly(String keyPrefix, long expireAt, long now){
+        if(earlyRefreshBeta <= 0){
+            return false;
+        }
+        RebuildCost cost = rebuildCosts.get(keyPrefix);
+        if(cost == null){
+            //还没有重建过，不知道要提前多久
+            return false;
+        }
+        double gap = -cost.avgMillis * earlyRefreshBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return now + gap >= expireAt;
+    }
+
+    private void recordRebuild(String keyPrefix, long nanos){
+        meterRegistry.timer("cache.rebuild", "prefix", keyPrefix).record(nanos, TimeUnit.NANOSECONDS);
+        rebuildCosts.computeIfAbsent(keyPrefix, p -> new RebuildCost()).add(nanos / 1e6);
+    }
+
+    /**
+     * 逻辑过期时间和TTL随机延长 0 ~ ttl-jitter，同一时间写入的key不会在同一时刻过期
+     */
+    private long jitter(long millis){
+        if(ttlJitter <= 0){
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 重建耗时的指数移动平均，并发更新时丢掉一两个样本没有关系
+     */
+    private static class RebuildCost {
+        private volatile double avgMillis = -1;
+
+        private void add(double millis){
+            double avg = avgMillis;
+            avgMillis = avg < 0 ? millis : avg * 0.8 + millis * 0.2;
         }
-        return r;
     }
 
     public <R,ID> R queryWithMutex(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallBack,Long time,TimeUnit unit){
+        if(idBloomFilter.rejects(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        Object cached = getPlain(key, type, localCache.region(keyPrefix));
+        if(cached != MISS){
+            return cached == LocalCache.NULL ? null : type.cast(cached);
+        }
+        //本节点只有一个线程去抢分布式锁，其他线程等它的结果
+        return singleFlight.execute(key, () -> loadWithMutex(key, id, type, dbFallBack, time, unit), () -> coalesced(keyPrefix));
+    }
 
-        if(StrUtil.isNotBlank(json)){
-            R r = JSONUtil.toBean(json, type);
-            return r;
+    /**
+     * 抢到锁的查数据库重建；没抢到说明别的节点在重建，退避后看redis里有没有结果，
+     * 等了mutex-wait-ms还没有就直接查数据库，不写缓存
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallBack, Long time, TimeUnit unit){
+        String lockKey = lockKey(key);
+        long deadline = System.currentTimeMillis() + mutexWaitMs;
+        long backoff = 10;
+        while (true) {
+            if(tryLock(lockKey)){
+                try{
+                    //拿到锁之后再查一次，别的节点可能刚刚重建完
+                    Object cached = getPlain(key, type, null);
+                    if(cached != MISS){
+                        return cached == LocalCache.NULL ? null : type.cast(cached);
+                    }
+                    R r = dbFallBack.apply(id);
+                    if(r == null){
+                        setNull(key);
+                        return null;
+                    }
+                    set(key,r,time,unit);
+                    return r;
+                }finally {
+                    unLock(lockKey);
+                }
+            }
+            if(System.currentTimeMillis() >= deadline){
+                log.warn("等待缓存重建超时，直接查询数据库，key={}", key);
+                return dbFallBack.apply(id);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            backoff = Math.min(backoff * 2, 200);
+            Object cached = getPlain(key, type, null);
+            if(cached != MISS){
+                return cached == LocalCache.NULL ? null : type.cast(cached);
+            }
+        }
+    }
+
+    /**
+     * 批量查询，缓存空值解决缓存穿透，和queryWithPassThrough一样
+     * 一次MGET，没命中的用一次批量查询从数据库加载，再用一个管道写回redis
+     * @param idOf 从数据库查出来的对象里取id，用来和请求的id对应
+     * @param dbBatchFallBack 按一批id查询数据库，比如listByIds
+     * @return 和ids一一对应，不存在的位置是null
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<R,ID> idOf,
+                                     Function<List<ID>,List<R>> dbBatchFallBack, Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, idOf, dbBatchFallBack, time, unit, false);
+    }
+
+    /**
+     * 批量查询，逻辑过期解决缓存击穿，和queryWithLogicalExpire一样：过期的先返回旧值，再在后台批量重建
+     * 不同的是没有预热的key也会从数据库加载并写入redis，列表接口不能因为缓存没预热就少数据
+     */
+    public <R,ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type, Function<R,ID> idOf,
+                                                      Function<List<ID>,List<R>> dbBatchFallBack, Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, idOf, dbBatchFallBack, time, unit, true);
+    }
+
+    private <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<R,ID> idOf,
+                                      Function<List<ID>,List<R>> dbBatchFallBack, Long time, TimeUnit unit, boolean logical){
+        List<R> result = new ArrayList<>(ids.size());
+        LocalCache.Region l1 = localCache.region(keyPrefix);
+        long version = l1 == null ? 0 : l1.version();
+        long hotVersion = hotKeys.version();
+        //要查redis的下标
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            result.add(null);
+            ID id = ids.get(i);
+            if(idBloomFilter.rejects(keyPrefix, id)){
+                continue;
+            }
+            String key = keyPrefix + id;
+            hotKeys.record(key);
+            Object cached = hotKeys.get(key);
+            if(cached == null && l1 != null){
+                cached = l1.get(key);
+            }
+            if(cached != null){
+                result.set(i, cached == LocalCache.NULL ? null : type.cast(cached));
+                continue;
+            }
+            pending.add(i);
+        }
+        if(pending.isEmpty()){
+            return result;
+        }
+        byte[][] rawKeys = new byte[pending.size()][];
+        for (int j = 0; j < rawKeys.length; j++) {
+            rawKeys[j] = (keyPrefix + ids.get(pending.get(j))).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        long now = System.currentTimeMillis();
+        List<ID> misses = new ArrayList<>();
+        List<ID> expired = new ArrayList<>();
+        for (int j = 0; j < rawKeys.length; j++) {
+            int i = pending.get(j);
+            ID id = ids.get(i);
+            String key = keyPrefix + id;
+            byte[] bytes = values == null ? null : values.get(j);
+            if(l1 != null){
+                l1.recordL2(bytes != null);
+            }
+            if(bytes == null){
+                misses.add(id);
+                continue;
+            }
+            if(bytes.length == 0){
+                //缓存的空值
+                if(l1 != null && !logical){
+                    l1.put(key, null, version, Long.MAX_VALUE);
+                }
+                continue;
+            }
+            CacheCodec.Decoded<R> decoded = decode(bytes, type, logical);
+            if(decoded == null){
+                //格式对不上，当作没有命中
+                misses.add(id);
+                continue;
+            }
+            result.set(i, decoded.getValue());
+            if(logical && decoded.getExpireAt() <= now){
+                expired.add(id);
+                continue;
+            }
+            if(logical && refreshEarly(keyPrefix, decoded.getExpireAt(), now)){
+                meterRegistry.counter("cache.refresh.early", "prefix", keyPrefix).increment();
+                expired.add(id);
+            }
+            if(l1 != null){
+                l1.put(key, decoded.getValue(), version, logical ? decoded.getExpireAt() : Long.MAX_VALUE);
+            }
+            hotKeys.put(key, decoded.getValue(), hotVersion, logical ? decoded.getExpireAt() : Long.MAX_VALUE);
         }
-        if(json != null){
+        if(!misses.isEmpty()){
+            //这些key在redis里原来不存在，其他节点的一级缓存里最多还有ttl-seconds之内的旧副本，回填时不广播删除
+            Map<ID,R> loaded = backfill(keyPrefix, misses, idOf, dbBatchFallBack, time, unit, logical);
+            for (int i = 0; i < ids.size(); i++) {
+                R r = loaded.get(ids.get(i));
+                if(r != null){
+                    result.set(i, r);
+                }
+            }
+        }
+        if(!expired.isEmpty()){
+            rebuildBatch(keyPrefix, expired, idOf, dbBatchFallBack, time, unit);
+        }
+        return result;
+    }
+
+    /**
+     * 一次查询数据库，一个管道写回redis；数据库里没有的写入空值
+     */
+    private <R,ID> Map<ID,R> backfill(String keyPrefix, List<ID> ids, Function<R,ID> idOf,
+                                      Function<List<ID>,List<R>> dbBatchFallBack, Long time, TimeUnit unit, boolean logical){
+        Map<ID,R> loaded = new HashMap<>(ids.size() * 2);
+        for (R r : dbBatchFallBack.apply(ids)) {
+            loaded.put(idOf.apply(r), r);
+        }
+        long now = System.currentTimeMillis();
+        Expiration nullTtl = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        byte[] empty = new byte[0];
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if(r == null){
+                    connection.set(rawKey, empty, nullTtl, RedisStringCommands.SetOption.upsert());
+                }else{
+                    //每个key单独加随机延长，同一批写入的不会同时过期
+                    long millis = jitter(unit.toMillis(time));
+                    byte[] value = writeCodec.encode(r, logical ? now + millis : CacheCodec.NO_EXPIRE);
+                    connection.set(rawKey, value, logical ? Expiration.persistent() : Expiration.milliseconds(millis),
+                            RedisStringCommands.SetOption.upsert());
+                }
+            }
             return null;
+        });
+        return loaded;
+    }
+
+    /**
+     * 批量写入带逻辑过期时间的值，编码在调用线程完成，一个管道写入
+     * 用于预热，不通知其他节点删除一级缓存，本地副本最多保留l1.ttl-seconds
+     */
+    public <R,ID> void setBatchWithLogicalExpire(String keyPrefix, List<R> values, Function<R,ID> idOf, Long time, TimeUnit unit){
+        long now = System.currentTimeMillis();
+        List<byte[]> keys = new ArrayList<>(values.size());
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        for (R r : values) {
+            keys.add((keyPrefix + idOf.apply(r)).getBytes(StandardCharsets.UTF_8));
+            encoded.add(writeCodec.encode(r, now + jitter(unit.toMillis(time))));
         }
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        R r = null;
-        try{
-            if(!isLock){
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix,id,type,dbFallBack,time,unit);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                connection.set(keys.get(i), encoded.get(i), Expiration.persistent(), RedisStringCommands.SetOption.upsert());
             }
-            r = dbFallBack.apply(id);
-            if(r == null){
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+            return null;
+        });
+    }
+
+    /**
+     * 过期的key在一个管道里一起抢重建锁，抢到的在后台一起重建
+     */
+    private <R,ID> void rebuildBatch(String keyPrefix, List<ID> expired, Function<R,ID> idOf,
+                                     Function<List<ID>,List<R>> dbBatchFallBack, Long time, TimeUnit unit){
+        List<String> lockKeys = expired.stream().map(id -> lockKey(keyPrefix + id)).collect(Collectors.toList());
+        byte[] one = "1".getBytes(StandardCharsets.UTF_8);
+        Expiration lockTtl = Expiration.seconds(LOCK_TTL_SECONDS);
+        //SET lock:cache:shop:1 1 EX 300 NX ...
+        List<Object> acquired = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String lockKey : lockKeys) {
+                connection.set(lockKey.getBytes(StandardCharsets.UTF_8), one, lockTtl, RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        List<String> lockedKeys = new ArrayList<>();
+        for (int i = 0; i < expired.size(); i++) {
+            if(Boolean.TRUE.equals(acquired.get(i))){
+                locked.add(expired.get(i));
+                lockedKeys.add(lockKeys.get(i));
             }
-            set(key,JSONUtil.toJsonStr(r),time,unit);
-        }catch (Exception e){
-            throw new RuntimeException(e);
-        }finally {
-            unLock(lockKey);
         }
-        return r;
+        if(locked.isEmpty()){
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            long begin = System.nanoTime();
+            try {
+                backfill(keyPrefix, locked, idOf, dbBatchFallBack, time, unit, true);
+                for (ID id : locked) {
+                    invalidateLocal(keyPrefix + id);
+                }
+                //一批一起重建，每个key拿到新值的耗时就是整批的耗时
+                recordRebuild(keyPrefix, System.nanoTime() - begin);
+            } catch (Exception e) {
+                log.error("批量重建缓存失败，keyPrefix={}，ids={}", keyPrefix, locked, e);
+            } finally {
+                stringRedisTemplate.delete(lockedKeys);
+            }
+        });
+    }
 
+    /**
+     * 重建锁按缓存key区分，不同前缀的同一个id不会互相等待
+     */
+    private static String lockKey(String key){
+        return RedisConstants.LOCK_CACHE_KEY + key;
     }
 
     public boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",300,TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",LOCK_TTL_SECONDS,TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient写入redis的值的编码方式
+ * 空值统一用空字节数组表示，不经过编码
+ */
+public interface CacheCodec {
+    /**
+     * 没有逻辑过期时间
+     */
+    long NO_EXPIRE = 0;
+
+    /**
+     * @return 能否解码这个值，迁移期间按这个判断旧值是哪种格式
+     */
+    boolean accepts(byte[] bytes);
+
+    /**
+     * @param expireAt 逻辑过期时间的毫秒时间戳，NO_EXPIRE表示普通的缓存值
+     */
+    byte[] encode(Object value, long expireAt);
+
+    /**
+     * @param logical 值是否带逻辑过期时间，要和写入时一致
+     * @return null表示格式不对或者和当前的类结构对不上，当作没有命中处理
+     */
+    <R> Decoded<R> decode(byte[] bytes, Class<R> type, boolean logical);
+
+    class Decoded<R> {
+        private final R value;
+        private final long expireAt;
+
+        public Decoded(R value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        public R getValue() {
+            return value;
+        }
+
+        public long getExpireAt() {
+            return expireAt;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分层时间轮
+ * 第一层每格tickMs，一圈wheelSize格；超出一圈的任务放到上一层，上一层每格是下一层一整圈的时间，需要时再创建。
+ * 上层的格子到期时把任务重新放回下层，越来越精确，直到最底层到期执行。
+ * 添加、取消任务都是O(1)，几天之后的任务也不用一直占着一个定时器
+ */
+@Slf4j
+public class HierarchicalTimingWheel {
+    private final Wheel root;
+    private final long tickMs;
+    //推进时间轮
+    private final ScheduledExecutorService tickExecutor = Executors.newSingleThreadScheduledExecutor();
+    //执行到期的任务，任务慢也不影响时间轮推进
+    private final ExecutorService taskExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 已经添加的任务，可以取消
+     */
+    public static class Timeout {
+        private final long expiration;
+        private final Runnable action;
+        private volatile boolean cancelled;
+
+        private Timeout(long expiration, Runnable action) {
+            this.expiration = expiration;
+            this.action = action;
+        }
+
+        public void cancel(){
+            //只做标记，到期时跳过，不用去格子里找
+            cancelled = true;
+        }
+    }
+
+    private static class Wheel {
+        private final long tickMs;
+        private final int wheelSize;
+        //一圈的时间
+        private final long interval;
+        private final List<List<Timeout>> buckets;
+        //当前时间，按tickMs向下取整
+        private long currentTime;
+        //上一层时间轮
+        private Wheel overflow;
+
+        private Wheel(long tickMs, int wheelSize, long startMs) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.interval = tickMs * wheelSize;
+            this.buckets = new ArrayList<>(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                buckets.add(new ArrayList<>());
+            }
+            this.currentTime = startMs - startMs % tickMs;
+        }
+
+        /**
+         * @return false表示任务已经到期，应该直接执行
+         */
+        private boolean add(Timeout timeout){
+            if(timeout.expiration < currentTime + tickMs){
+                return false;
+            }
+            if(timeout.expiration < currentTime + interval){
+                buckets.get((int) ((timeout.expiration / tickMs) % wheelSize)).add(timeout);
+                return true;
+            }
+            if(overflow == null){
+                overflow = new Wheel(interval, wheelSize, currentTime);
+            }
+            return overflow.add(timeout);
+        }
+
+        /**
+         * 推进到timeMs，经过的格子里的任务放进expired，由调用方重新添加或者执行
+         */
+        private void advance(long timeMs, List<Timeout> expired){
+            while (timeMs >= currentTime + tickMs){
+                currentTime += tickMs;
+                List<Timeout> bucket = buckets.get((int) ((currentTime / tickMs) % wheelSize));
+                if(!bucket.isEmpty()){
+                    expired.addAll(bucket);
+                    bucket.clear();
+                }
+            }
+            if(overflow != null){
+                overflow.advance(currentTime, expired);
+            }
+        }
+    }
+
+    public HierarchicalTimingWheel(long tickMs, int wheelSize) {
+        this.tickMs = tickMs;
+        this.root = new Wheel(tickMs, wheelSize, System.currentTimeMillis());
+    }
+
+    public void start(){
+        tickExecutor.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop(){
+        tickExecutor.shutdownNow();
+        taskExecutor.shutdownNow();
+    }
+
+    /**
+     * 在expirationMs（时间戳）执行action，已经过了的时间立即执行
+     */
+    public synchronized Timeout schedule(long expirationMs, Runnable action){
+        Timeout timeout = new Timeout(expirationMs, action);
+        if(!root.add(timeout)){
+            run(timeout);
+        }
+        return timeout;
+    }
+
+    private synchronized void advance(){
+        try {
+            List<Timeout> expired = new ArrayList<>();
+            root.advance(System.currentTimeMillis(), expired);
+            for (Timeout timeout : expired) {
+                if(timeout.cancelled){
+                    continue;
+                }
+                //上层到期的任务放回下层，最底层到期的直接执行
+                if(!root.add(timeout)){
+                    run(timeout);
+                }
+            }
+        } catch (Exception e) {
+            log.error("推进时间轮失败", e);
+        }
+    }
+
+    private void run(Timeout timeout){
+        if(timeout.cancelled){
+            return;
+        }
+        taskExecutor.execute(() -> {
+            try {
+                timeout.action.run();
+            } catch (Exception e) {
+                log.error("时间轮任务执行失败", e);
+            }
+        });
+    }
+}
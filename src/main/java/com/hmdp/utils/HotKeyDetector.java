@@ -0,0 +1,250 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点key探测：按比例抽样key的访问，记到滑动窗口的count-min sketch里，
+ * 估算的访问次数超过阈值时通过发布订阅通知所有节点这个key是热点；
+ * 热点key在每个节点上保留一份很短时间的本地副本，冷却之前的读请求不再打到同一个redis分片
+ */
+@Slf4j
+@Component
+public class HotKeyDetector implements MessageListener {
+    //每个sketch的行数和每行的计数器个数
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    //滑动窗口分成几段，每段一个sketch，轮转时清空最老的一段
+    private static final int SLOTS = 5;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.hot-key.sample-rate:0.05}")
+    private double sampleRate;
+    @Value("${hmdp.cache.hot-key.window-seconds:5}")
+    private long windowSeconds;
+    @Value("${hmdp.cache.hot-key.threshold:5000}")
+    private long threshold;
+    @Value("${hmdp.cache.hot-key.copy-ttl-ms:1000}")
+    private long copyTtlMs;
+    @Value("${hmdp.cache.hot-key.cool-down-seconds:30}")
+    private long coolDownSeconds;
+    @Value("${hmdp.cache.hot-key.max-copies:1000}")
+    private int maxCopies;
+
+    private final AtomicIntegerArray[] sketches = new AtomicIntegerArray[SLOTS];
+    //正在计数的那一段
+    private volatile int current;
+    //热点key -> 热点标记的过期时间，一直超过阈值时会续期
+    private final Map<String, Long> hot = new ConcurrentHashMap<>();
+    //热点key的本地副本
+    private final Map<String, Copy> copies = new ConcurrentHashMap<>();
+    //每次删除都加一，和一级缓存一样，读redis期间有写入时不回填
+    private final AtomicLong version = new AtomicLong();
+    private final ScheduledExecutorService rotateExecutor = Executors.newSingleThreadScheduledExecutor();
+    private Counter copyHit;
+    private Counter detected;
+
+    private static class Copy {
+        private final Object value;
+        private final long expireAt;
+
+        private Copy(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        if(!enabled){
+            return;
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        copyHit = meterRegistry.counter("cache.hotkey.copy.hits");
+        detected = meterRegistry.counter("cache.hotkey.detected");
+        meterRegistry.gauge("cache.hotkey.size", hot, Map::size);
+        redisMessageListenerContainer.addMessageListener(this, Arrays.asList(
+                new ChannelTopic(RedisConstants.HOT_KEY_CHANNEL), new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL)));
+        long slotMillis = Math.max(1, TimeUnit.SECONDS.toMillis(windowSeconds) / SLOTS);
+        rotateExecutor.scheduleAtFixedRate(this::rotate, slotMillis, slotMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        rotateExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问，按sample-rate抽样
+     */
+    public void record(String key){
+        if(!enabled || ThreadLocalRandom.current().nextDouble() >= sampleRate){
+            return;
+        }
+        int h1 = key.hashCode() * 0x9E3779B9;
+        int h2 = Integer.rotateLeft(h1, 16) * 0x85EBCA6B | 1;
+        AtomicIntegerArray sketch = sketches[current];
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * WIDTH + Math.floorMod(h1 + row * h2, WIDTH);
+            sketch.incrementAndGet(index);
+            //整个窗口的计数是各段之和，每一行都只会多算，取最小的一行
+            long sum = 0;
+            for (AtomicIntegerArray s : sketches) {
+                sum += s.get(index);
+            }
+            estimate = Math.min(estimate, sum);
+        }
+        if(estimate / sampleRate >= threshold){
+            markHot(key);
+        }
+    }
+
+    public boolean isHot(String key){
+        Long until = hot.get(key);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /**
+     * @return 热点key的本地副本，null表示没有，LocalCache.NULL表示缓存的空值
+     */
+    public Object get(String key){
+        if(copies.isEmpty()){
+            return null;
+        }
+        Copy copy = copies.get(key);
+        if(copy == null){
+            return null;
+        }
+        if(copy.expireAt < System.currentTimeMillis()){
+            copies.remove(key, copy);
+            return null;
+        }
+        copyHit.increment();
+        return copy.value;
+    }
+
+    public long version(){
+        return version.get();
+    }
+
+    /**
+     * 是热点key时保存本地副本，不是热点时什么都不做
+     * @param version 读redis之前的版本号
+     * @param expireAt 最晚的过期时间（比如逻辑过期时间），和copy-ttl-ms取较早的一个
+     */
+    public void put(String key, Object value, long version, long expireAt){
+        if(!enabled || !isHot(key) || copies.size() >= maxCopies){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        expireAt = Math.min(expireAt, now + copyTtlMs);
+        if(expireAt <= now){
+            return;
+        }
+        copies.put(key, new Copy(value == null ? LocalCache.NULL : value, expireAt));
+        //和删除并发时可能已经保存了旧值，再检查一次
+        if(this.version.get() != version){
+            copies.remove(key);
+        }
+    }
+
+    /**
+     * 删除本地副本；是热点key时通知其他节点删除
+     */
+    public void invalidate(String key){
+        if(!enabled){
+            return;
+        }
+        version.incrementAndGet();
+        copies.remove(key);
+        if(isHot(key)){
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if(RedisConstants.HOT_KEY_CHANNEL.equals(channel)){
+            hot.put(key, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(coolDownSeconds));
+        }else{
+            version.incrementAndGet();
+            copies.remove(key);
+        }
+    }
+
+    private void markHot(String key){
+        long now = System.currentTimeMillis();
+        long coolDownMillis = TimeUnit.SECONDS.toMillis(coolDownSeconds);
+        Long until = hot.get(key);
+        //还热着的key过了一半冷却时间才续期，不用每次抽样都发消息
+        if(until != null && until - now > coolDownMillis / 2){
+            return;
+        }
+        hot.put(key, now + coolDownMillis);
+        if(until == null || until <= now){
+            detected.increment();
+            log.info("发现热点key：{}", key);
+        }
+        stringRedisTemplate.convertAndSend(RedisConstants.HOT_KEY_CHANNEL, key);
+    }
+
+    /**
+     * 窗口滑动一段：清空最老的一段作为新的当前段，顺便清掉冷却了的热点key和过期的副本
+     */
+    private void rotate(){
+        try {
+            int next = (current + 1) % SLOTS;
+            AtomicIntegerArray sketch = sketches[next];
+            for (int i = 0; i < sketch.length(); i++) {
+                sketch.set(i, 0);
+            }
+            current = next;
+            long now = System.currentTimeMillis();
+            hot.entrySet().removeIf(entry -> {
+                if(entry.getValue() > now){
+                    return false;
+                }
+                log.info("热点key已冷却：{}", entry.getKey());
+                return true;
+            });
+            copies.entrySet().removeIf(entry -> entry.getValue().expireAt < now || !hot.containsKey(entry.getKey()));
+        } catch (Exception e) {
+            log.error("热点key窗口轮转失败", e);
+        }
+    }
+}
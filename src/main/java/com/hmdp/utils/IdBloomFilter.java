@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * 商铺和博客id的本地布隆过滤器，拦截一定不存在的id，防止随机id扫描打到redis和数据库
+ * 启动时从数据库流式加载，新增数据时通过发布订阅通知所有节点加入；
+ * 布隆过滤器删不掉元素，定时重建清掉已删除的id。直接写数据库的数据（导入、DataGenerator）要等重建之后才能查到
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.cache.bloom.rebuild-minutes:60}")
+    private long rebuildMinutes;
+
+    //按预估元素数的多少倍分配空间，给两次重建之间的新增留余量
+    private static final double HEADROOM = 2.0;
+    private static final long MIN_EXPECTED = 10000;
+
+    private final ScheduledExecutorService bloomExecutor = Executors.newSingleThreadScheduledExecutor();
+    //游标要在事务里遍历，只读事务
+    private TransactionTemplate readOnlyTransaction;
+    private final Map<String, Entity> entities = new LinkedHashMap<>();
+    //缓存key前缀 -> 实体，CacheClient按前缀查找
+    private final Map<String, Entity> byKeyPrefix = new LinkedHashMap<>();
+
+    /**
+     * 位数组和哈希函数个数，多个线程并发加入时用CAS设置位
+     */
+    private static class Filter {
+        private final AtomicLongArray words;
+        private final long numBits;
+        private final int hashes;
+
+        private Filter(long expected, double fpp) {
+            long bits = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int numWords = (int) Math.max(1, (bits + 63) / 64);
+            this.words = new AtomicLongArray(numWords);
+            this.numBits = numWords * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) numBits / expected * Math.log(2)));
+        }
+
+        private void add(long id){
+            long h1 = mix(id);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                    if((word & mask) != 0){
+                        break;
+                    }
+                } while (!words.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        private boolean mightContain(long id){
+            long h1 = mix(id);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits);
+                if((words.get((int) (bit >>> 6)) & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //murmur3的64位finalizer，连续的自增id也能打散
+        private static long mix(long x){
+            x ^= x >>> 33;
+            x *= 0xff51afd7ed558ccdL;
+            x ^= x >>> 33;
+            x *= 0xc4ceb9fe1a85ec53L;
+            x ^= x >>> 33;
+            return x;
+        }
+    }
+
+    private static class Entity {
+        private final String name;
+        private final Supplier<Long> count;
+        private final Supplier<Cursor<Long>> scan;
+        //null表示还没加载完，这时不拦截
+        private volatile Filter current;
+        //重建期间新增的id同时加入新旧两个过滤器
+        private volatile Filter building;
+
+        private Entity(String name, Supplier<Long> count, Supplier<Cursor<Long>> scan) {
+            this.name = name;
+            this.count = count;
+            this.scan = scan;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        if(!enabled){
+            return;
+        }
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        Entity shop = new Entity(SHOP, () -> (long) shopMapper.selectCount(null), shopMapper::scanIds);
+        Entity blog = new Entity(BLOG, () -> (long) blogMapper.selectCount(null), blogMapper::scanIds);
+        entities.put(SHOP, shop);
+        entities.put(BLOG, blog);
+        byKeyPrefix.put(RedisConstants.CACHE_SHOP_KEY, shop);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        //启动时在后台加载，加载完之前不拦截
+        if(rebuildMinutes > 0){
+            bloomExecutor.scheduleWithFixedDelay(this::rebuildAll, 0, rebuildMinutes, TimeUnit.MINUTES);
+        }else{
+            bloomExecutor.execute(this::rebuildAll);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        bloomExecutor.shutdownNow();
+    }
+
+    /**
+     * @return false表示id一定不存在；没有启用或者还没加载完时返回true
+     */
+    public boolean mightContain(String entity, Long id){
+        Entity e = entities.get(entity);
+        return e == null || check(e, id);
+    }
+
+    /**
+     * CacheClient查询之前调用，keyPrefix没有对应的过滤器时不拦截
+     * @return true表示id一定不存在
+     */
+    public boolean rejects(String keyPrefix, Object id){
+        Entity e = byKeyPrefix.get(keyPrefix);
+        return e != null && id instanceof Long && !check(e, (Long) id);
+    }
+
+    /**
+     * 新增数据后调用，加入本地过滤器，并通知其他节点
+     */
+    public void add(String entity, Long id){
+        Entity e = entities.get(entity);
+        if(e == null || id == null){
+            return;
+        }
+        addLocal(e, id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, entity + ":" + id);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        Entity e = split > 0 ? entities.get(body.substring(0, split)) : null;
+        if(e == null){
+            log.error("布隆过滤器消息格式错误：{}", body);
+            return;
+        }
+        try {
+            addLocal(e, Long.valueOf(body.substring(split + 1)));
+        } catch (NumberFormatException ex) {
+            log.error("布隆过滤器消息格式错误：{}", body);
+        }
+    }
+
+    private boolean check(Entity e, Long id){
+        Filter filter = e.current;
+        if(filter == null || filter.mightContain(id)){
+            return true;
+        }
+        meterRegistry.counter("cache.bloom.rejected", "entity", e.name).increment();
+        return false;
+    }
+
+    private void addLocal(Entity e, long id){
+        //先加入正在重建的，再加入当前的，切换时不会漏掉
+        Filter building = e.building;
+        if(building != null){
+            building.add(id);
+        }
+        Filter current = e.current;
+        if(current != null){
+            current.add(id);
+        }
+    }
+
+    private void rebuildAll(){
+        for (Entity e : entities.values()) {
+            try {
+                rebuild(e);
+            } catch (Exception ex) {
+                log.error("重建布隆过滤器失败，entity={}", e.name, ex);
+            }
+        }
+    }
+
+    /**
+     * 按当前行数分配新的过滤器，流式读取所有id，读完后替换旧的
+     */
+    private void rebuild(Entity e){
+        long begin = System.currentTimeMillis();
+        long expected = Math.max(MIN_EXPECTED, (long) (e.count.get() * HEADROOM));
+        Filter filter = new Filter(expected, fpp);
+        e.building = filter;
+        long[] loaded = {0};
+        try {
+            readOnlyTransaction.execute(status -> {
+                try (Cursor<Long> cursor = e.scan.get()) {
+                    for (Long id : cursor) {
+                        filter.add(id);
+                        loaded[0]++;
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            });
+            e.current = filter;
+        } finally {
+            e.building = null;
+        }
+        log.info("布隆过滤器{}重建完成，{}个id，{}位，{}个哈希函数，耗时{}ms",
+                e.name, loaded[0], filter.numBits, filter.hashes, System.currentTimeMillis() - begin);
+    }
+}
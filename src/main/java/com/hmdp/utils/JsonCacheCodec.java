@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 原来的json格式：普通值直接转json，逻辑过期的值包一层RedisData
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public boolean accepts(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] != BinaryCacheCodec.MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        if(expireAt == NO_EXPIRE){
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> Decoded<R> decode(byte[] bytes, Class<R> type, boolean logical) {
+        try {
+            String json = new String(bytes, StandardCharsets.UTF_8);
+            if(!logical){
+                return new Decoded<>(JSONUtil.toBean(json, type), NO_EXPIRE);
+            }
+            //先解析外层的RedisData，再把里面的JSONObject转成目标类型
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new Decoded<>(r, expireAt);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CacheClient的一级缓存，放在redis前面的进程内缓存
+ * 只对配置了的key前缀生效，按条数和存活时间淘汰；写缓存时通过发布订阅通知所有节点删除本地副本，
+ * 消息丢失时最多读到ttl-seconds的旧数据
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+    //缓存空值用的占位对象
+    public static final Object NULL = new Object();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //启用一级缓存的key前缀，逗号分隔
+    @Value("${hmdp.cache.l1.prefixes:}")
+    private String[] prefixes;
+    @Value("${hmdp.cache.l1.max-size:10000}")
+    private int maxSize;
+    @Value("${hmdp.cache.l1.ttl-seconds:5}")
+    private long ttlSeconds;
+
+    //key前缀 -> 这个前缀的本地缓存
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        private final Object value;
+        private final long expireAt;
+        //最近被读过，淘汰时跳过一次（clock算法）
+        private volatile boolean accessed;
+
+        private Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 一个key前缀的本地缓存和命中统计
+     */
+    public class Region {
+        private final String prefix;
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        //每次删除都加一，读redis前记下版本号，回填时版本变了说明期间有写入，不回填
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicBoolean trimming = new AtomicBoolean();
+        private final Counter l1Hit;
+        private final Counter l1Miss;
+        private final Counter l2Hit;
+        private final Counter l2Miss;
+
+        private Region(String prefix) {
+            this.prefix = prefix;
+            this.l1Hit = meterRegistry.counter("cache.gets", "prefix", prefix, "layer", "l1", "result", "hit");
+            this.l1Miss = meterRegistry.counter("cache.gets", "prefix", prefix, "layer", "l1", "result", "miss");
+            this.l2Hit = meterRegistry.counter("cache.gets", "prefix", prefix, "layer", "l2", "result", "hit");
+            this.l2Miss = meterRegistry.counter("cache.gets", "prefix", prefix, "layer", "l2", "result", "miss");
+            meterRegistry.gauge("cache.l1.size", Tags.of("prefix", prefix), entries, Map::size);
+        }
+
+        /**
+         * @return null表示没有命中，NULL表示命中了缓存的空值
+         */
+        public Object get(String key){
+            Entry entry = entries.get(key);
+            if(entry == null){
+                l1Miss.increment();
+                return null;
+            }
+            if(entry.expireAt < System.currentTimeMillis()){
+                entries.remove(key, entry);
+                l1Miss.increment();
+                return null;
+            }
+            entry.accessed = true;
+            l1Hit.increment();
+            return entry.value;
+        }
+
+        public long version(){
+            return version.get();
+        }
+
+        /**
+         * 回填一级缓存
+         * @param version 读redis之前的版本号
+         * @param expireAt 最晚的过期时间（比如逻辑过期时间），和ttl-seconds取较早的一个
+         */
+        public void put(String key, Object value, long version, long expireAt){
+            long now = System.currentTimeMillis();
+            expireAt = Math.min(expireAt, now + TimeUnit.SECONDS.toMillis(ttlSeconds));
+            if(expireAt <= now){
+                return;
+            }
+            entries.put(key, new Entry(value == null ? NULL : value, expireAt));
+            //和删除并发时可能已经回填了旧值，再检查一次
+            if(this.version.get() != version){
+                entries.remove(key);
+                return;
+            }
+            if(entries.size() > maxSize){
+                trim();
+            }
+        }
+
+        private void invalidate(String key){
+            version.incrementAndGet();
+            entries.remove(key);
+        }
+
+        public void recordL2(boolean hit){
+            (hit ? l2Hit : l2Miss).increment();
+        }
+
+        /**
+         * 超出容量时淘汰到容量的90%：先删过期的，再删上一轮之后没有被读过的
+         */
+        private void trim(){
+            if(!trimming.compareAndSet(false, true)){
+                return;
+            }
+            try {
+                int target = maxSize * 9 / 10;
+                long now = System.currentTimeMillis();
+                entries.values().removeIf(entry -> entry.expireAt < now);
+                for (int round = 0; round < 2 && entries.size() > target; round++) {
+                    Iterator<Entry> it = entries.values().iterator();
+                    while (it.hasNext() && entries.size() > target) {
+                        Entry entry = it.next();
+                        if(entry.accessed){
+                            entry.accessed = false;
+                        }else{
+                            it.remove();
+                        }
+                    }
+                }
+            } finally {
+                trimming.set(false);
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        for (String prefix : prefixes) {
+            if(!prefix.trim().isEmpty()){
+                regions.put(prefix.trim(), new Region(prefix.trim()));
+            }
+        }
+        if(!regions.isEmpty()){
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+            log.info("一级缓存已启用：{}，max-size={}，ttl-seconds={}", regions.keySet(), maxSize, ttlSeconds);
+        }
+    }
+
+    /**
+     * @return null表示这个前缀没有启用一级缓存
+     */
+    public Region region(String keyPrefix){
+        return regions.isEmpty() ? null : regions.get(keyPrefix);
+    }
+
+    /**
+     * 删除本地副本，并通知其他节点删除
+     */
+    public void invalidate(String key){
+        Region region = regionOf(key);
+        if(region == null){
+            return;
+        }
+        region.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        Region region = regionOf(key);
+        if(region != null){
+            region.invalidate(key);
+        }
+    }
+
+    private Region regionOf(String key){
+        for (Region region : regions.values()) {
+            if(key.startsWith(region.prefix)){
+                return region;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀订单状态缓存
+ * 抢到资格时lua脚本写入PENDING，消费者落库后改成CREATED或FAILED，并通过发布订阅通知各节点上等待结果的请求
+ */
+@Slf4j
+@Component
+public class OrderStatusCache implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //orderId -> 在本节点等待这个订单结果的回调
+    private final Map<Long, Set<Consumer<OrderStatusDTO>>> watchers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init(){
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.ORDER_STATUS_CHANNEL));
+    }
+
+    public static String statusKey(Long orderId){
+        return RedisConstants.ORDER_STATUS_KEY + orderId;
+    }
+
+    /**
+     * 查询订单状态，只能查自己的订单
+     * @return null表示没有状态记录（已经过期或者订单不存在）
+     */
+    public OrderStatusDTO get(Long orderId, Long userId){
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(statusKey(orderId), Arrays.asList("status", "userId"));
+        String status = (String) values.get(0);
+        if(StrUtil.isBlank(status) || !String.valueOf(userId).equals(values.get(1))){
+            return null;
+        }
+        return new OrderStatusDTO(orderId, status);
+    }
+
+    /**
+     * 一批订单处理完之后更新状态，一次管道写入，一条消息通知所有节点
+     */
+    public void update(List<VoucherOrder> orders, String status){
+        if(orders.isEmpty()){
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                //状态记录过期后也补上userId，查询时要用来校验订单归属
+                Map<String, String> fields = new HashMap<>(2);
+                fields.put("status", status);
+                fields.put("userId", String.valueOf(order.getUserId()));
+                String key = statusKey(order.getId());
+                conn.hMSet(key, fields);
+                conn.expire(key, RedisConstants.ORDER_STATUS_TTL);
+            }
+            return null;
+        });
+        for (VoucherOrder order : orders) {
+            if(message.length() > 0){
+                message.append(',');
+            }
+            message.append(order.getId()).append(':').append(status);
+        }
+        stringRedisTemplate.convertAndSend(RedisConstants.ORDER_STATUS_CHANNEL, message.toString());
+    }
+
+    /**
+     * 订单有结果时回调，回调最多执行一次；调用方超时后要调用unwatch
+     */
+    public void watch(Long orderId, Consumer<OrderStatusDTO> callback){
+        watchers.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet()).add(callback);
+    }
+
+    public void unwatch(Long orderId, Consumer<OrderStatusDTO> callback){
+        watchers.computeIfPresent(orderId, (id, set) -> {
+            set.remove(callback);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String entry : body.split(",")) {
+            try {
+                int i = entry.indexOf(':');
+                Long orderId = Long.valueOf(entry.substring(0, i));
+                Set<Consumer<OrderStatusDTO>> callbacks = watchers.remove(orderId);
+                if(callbacks == null){
+                    continue;
+                }
+                OrderStatusDTO dto = new OrderStatusDTO(orderId, entry.substring(i + 1));
+                for (Consumer<OrderStatusDTO> callback : callbacks) {
+                    callback.accept(dto);
+                }
+            } catch (RuntimeException e) {
+                log.error("订单状态消息格式错误：{}", entry, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 未支付订单的超时取消
+ * 订单落库后放进一个按支付截止时间排序的ZSET，定时用lua脚本批量领取到期的订单，
+ * 在一个事务里取消订单、归还数据库库存，再归还redis库存和下单资格；订单再多也只有一个定时任务。
+ * 已支付的订单不从ZSET里提前删除，到期领取时按状态跳过
+ */
+@Slf4j
+@Component
+public class OrderTimeoutQueue {
+    public static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    //VoucherOrderServiceImpl也依赖这个类，这里延迟注入
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+    @Resource
+    private OrderStatusCache orderStatusCache;
+
+    @Value("${hmdp.seckill.timeout.pay-minutes:15}")
+    private long payMinutes;
+    @Value("${hmdp.seckill.timeout.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.timeout.poll-interval-ms:1000}")
+    private long pollIntervalMs;
+    @Value("${hmdp.seckill.timeout.claim-seconds:60}")
+    private long claimSeconds;
+
+    private final ScheduledExecutorService timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Counter cancelledCounter;
+
+    public OrderTimeoutQueue(MeterRegistry meterRegistry) {
+        cancelledCounter = Counter.builder("seckill.order.timeout.cancelled")
+                .description("超时未支付被取消的订单数").register(meterRegistry);
+    }
+
+    @PostConstruct
+    private void init(){
+        if(isEnabled()){
+            timeoutExecutor.scheduleWithFixedDelay(this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        timeoutExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled(){
+        return payMinutes > 0;
+    }
+
+    /**
+     * 新创建的订单加入延迟队列，一条ZADD写入一批
+     */
+    public void add(List<VoucherOrder> orders){
+        if(!isEnabled() || orders.isEmpty()){
+            return;
+        }
+        double deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payMinutes);
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(orders.size() * 2);
+        for (VoucherOrder order : orders) {
+            tuples.add(new DefaultTypedTuple<>(order.getId().toString(), deadline));
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.ORDER_TIMEOUT_KEY, tuples);
+    }
+
+    private void poll(){
+        try {
+            while (!Thread.currentThread().isInterrupted()){
+                List<String> ids = claim();
+                if(ids.isEmpty()){
+                    return;
+                }
+                handle(ids);
+                //不满一批说明已经没有到期的订单了
+                if(ids.size() < batchSize){
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理超时订单异常", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> claim(){
+        long now = System.currentTimeMillis();
+        List<String> ids = stringRedisTemplate.execute(
+                CLAIM_SCRIPT,
+                Arrays.asList(RedisConstants.ORDER_TIMEOUT_KEY, RedisConstants.ORDER_TIMEOUT_PROCESSING_KEY),
+                String.valueOf(now), String.valueOf(batchSize), String.valueOf(now + TimeUnit.SECONDS.toMillis(claimSeconds))
+        );
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    private void handle(List<String> ids){
+        List<Long> orderIds = ids.stream().map(Long::valueOf).collect(Collectors.toList());
+        //1.一个事务里取消订单、归还数据库库存，已支付的订单不会被取消
+        List<VoucherOrder> cancelled = voucherOrderService.closeTimeoutOrders(orderIds);
+        //2.按优惠券归还redis库存和下单资格，脚本只归还还在集合里的用户，重复执行不会多还
+        //这一步之前宕机的话，处理中的订单会被重新领取，已取消的订单在上一步里再返回一次
+        Map<Long, List<Long>> userIds = cancelled.stream().collect(Collectors.groupingBy(
+                VoucherOrder::getVoucherId, Collectors.mapping(VoucherOrder::getUserId, Collectors.toList())));
+        for (Map.Entry<Long, List<Long>> entry : userIds.entrySet()) {
+            seckillStockShards.release(entry.getKey(), entry.getValue());
+            seckillSoldOutFlags.clear(entry.getKey());
+        }
+        orderStatusCache.update(cancelled, OrderStatusDTO.CANCELLED);
+        long newlyCancelled = cancelled.stream()
+                .filter(order -> order.getStatus() == SystemConstants.ORDER_STATUS_UNPAID).count();
+        cancelledCounter.increment(newlyCancelled);
+        //3.处理完了，从处理中集合删除
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.ORDER_TIMEOUT_PROCESSING_KEY, ids.toArray());
+        if(newlyCancelled > 0){
+            log.info("取消超时未支付订单{}个", newlyCancelled);
+        }
+        if(cancelled.size() > newlyCancelled){
+            log.warn("重新归还已取消订单的redis库存和下单资格{}个", cancelled.size() - newlyCancelled);
+        }
+    }
+}
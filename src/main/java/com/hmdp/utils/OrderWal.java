@@ -0,0 +1,392 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单的本地预写日志
+ * lua脚本接受订单后，把订单追加到本地磁盘上内存映射的日志文件里，按段滚动；
+ * 订单落库（或者确定失败）后在记录上打确认标记，一个段的记录全部确认后删除这个段。
+ * 没有用单个的消费位点做检查点：订单消息按分区消费，各分区的落库顺序和日志顺序不一致，
+ * 所以每条记录自带确认标记，最老的还没删除的段就相当于检查点。
+ * redis在订单落库前丢了数据时，定期把超过宽限期还没确认的记录重新交给createVoucherOrder，
+ * 一条记录重放max-replays次都失败时确认掉并记日志，不让它卡住后面的重放
+ */
+@Slf4j
+@Component
+public class OrderWal implements MessageListener {
+    /**
+     * 定长记录：orderId、userId、voucherId、接受时间、校验和、状态，各8/8/8/8/4/4字节
+     */
+    private static final int RECORD_SIZE = 40;
+    private static final int STATE_OFFSET = 36;
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_ACCEPTED = 1;
+    private static final int STATE_DONE = 2;
+    private static final String SUFFIX = ".wal";
+    private static final int REPLAY_BATCH = 500;
+
+    //VoucherOrderServiceImpl也依赖这个类，这里延迟注入
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+    @Resource
+    private OrderStatusCache orderStatusCache;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.wal.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.wal.dir:wal}")
+    private String dir;
+    @Value("${hmdp.seckill.wal.segment-mb:64}")
+    private int segmentMb;
+    @Value("${hmdp.seckill.wal.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+    @Value("${hmdp.seckill.wal.grace-seconds:300}")
+    private long graceSeconds;
+    @Value("${hmdp.seckill.wal.replay-interval-seconds:60}")
+    private long replayIntervalSeconds;
+    @Value("${hmdp.seckill.wal.max-replays:5}")
+    private int maxReplays;
+
+    private final ScheduledExecutorService walExecutor = Executors.newSingleThreadScheduledExecutor();
+    //段序号 -> 段
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    //还没确认的订单 -> 全局记录序号（段序号 * 每段记录数 + 段内序号）
+    private final Map<Long, Long> pending = new ConcurrentHashMap<>();
+    //重放失败的订单 -> 失败次数
+    private final Map<Long, Integer> replayFailures = new ConcurrentHashMap<>();
+    private int recordsPerSegment;
+    //正在追加的段和下一条记录的段内序号，只在append里修改
+    private Segment active;
+    private int writeIndex;
+
+    private static class Segment {
+        private final long index;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        //没确认的记录数
+        private final AtomicInteger unacked = new AtomicInteger();
+        private final AtomicBoolean deleted = new AtomicBoolean();
+        //写满之后不再追加，全部确认后就可以删除
+        private volatile boolean sealed;
+
+        private Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        if(!enabled){
+            return;
+        }
+        recordsPerSegment = segmentMb * 1024 * 1024 / RECORD_SIZE;
+        File directory = new File(dir);
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("无法创建订单日志目录：" + directory.getAbsolutePath());
+        }
+        load(directory);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.ORDER_STATUS_CHANNEL));
+        if(flushIntervalMs > 0){
+            walExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        walExecutor.scheduleWithFixedDelay(this::replay, replayIntervalSeconds, replayIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        walExecutor.shutdownNow();
+        if(enabled){
+            flush();
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 追加一条已经被lua脚本接受的订单，只写内存映射的页，不等刷盘；
+     * 进程崩溃时页缓存里的数据还在，机器掉电最多丢flush-interval-ms内的记录
+     */
+    public void append(Long orderId, Long userId, Long voucherId){
+        if(!enabled){
+            return;
+        }
+        try {
+            doAppend(orderId, userId, voucherId);
+        } catch (Exception e) {
+            //订单已经进入消息队列，写日志失败不影响下单
+            log.error("写订单日志失败，orderId={}", orderId, e);
+        }
+    }
+
+    private synchronized void doAppend(long orderId, long userId, long voucherId) throws IOException {
+        if(active == null || writeIndex == recordsPerSegment){
+            roll();
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = writeIndex * RECORD_SIZE;
+        long acceptedAt = System.currentTimeMillis();
+        buffer.putLong(offset, orderId);
+        buffer.putLong(offset + 8, userId);
+        buffer.putLong(offset + 16, voucherId);
+        buffer.putLong(offset + 24, acceptedAt);
+        buffer.putInt(offset + 32, checksum(orderId, userId, voucherId, acceptedAt));
+        //状态最后写，读到ACCEPTED时前面的字段一定已经写完
+        buffer.putInt(offset + STATE_OFFSET, STATE_ACCEPTED);
+        active.unacked.incrementAndGet();
+        pending.put(orderId, active.index * recordsPerSegment + writeIndex);
+        writeIndex++;
+    }
+
+    /**
+     * 一批订单已经有结果，打上确认标记；重复确认没有影响
+     */
+    public void ack(List<VoucherOrder> orders){
+        if(!enabled){
+            return;
+        }
+        for (VoucherOrder order : orders) {
+            ack(order.getId());
+        }
+    }
+
+    private void ack(Long orderId){
+        replayFailures.remove(orderId);
+        Long position = pending.remove(orderId);
+        if(position == null){
+            return;
+        }
+        Segment segment = segments.get(position / recordsPerSegment);
+        if(segment == null){
+            return;
+        }
+        segment.buffer.putInt((int) (position % recordsPerSegment) * RECORD_SIZE + STATE_OFFSET, STATE_DONE);
+        if(segment.unacked.decrementAndGet() == 0 && segment.sealed){
+            delete(segment);
+        }
+    }
+
+    /**
+     * 订单状态的通知，其他节点消费了本节点接受的订单时从这里确认
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String entry : body.split(",")) {
+            int i = entry.indexOf(':');
+            try {
+                ack(Long.valueOf(i < 0 ? entry : entry.substring(0, i)));
+            } catch (NumberFormatException e) {
+                log.error("订单状态消息格式错误：{}", entry);
+            }
+        }
+    }
+
+    /**
+     * 启动时加载已有的段，没确认的记录放回pending，最后一个没写满的段接着追加
+     */
+    private void load(File directory) throws IOException {
+        File[] files = directory.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if(files == null){
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long index = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            Segment segment = map(index, file);
+            int count = 0;
+            while (count < recordsPerSegment){
+                int offset = count * RECORD_SIZE;
+                int state = segment.buffer.getInt(offset + STATE_OFFSET);
+                if(state == STATE_EMPTY){
+                    break;
+                }
+                long orderId = segment.buffer.getLong(offset);
+                if(state == STATE_ACCEPTED && checksum(orderId, segment.buffer.getLong(offset + 8),
+                        segment.buffer.getLong(offset + 16), segment.buffer.getLong(offset + 24)) == segment.buffer.getInt(offset + 32)){
+                    segment.unacked.incrementAndGet();
+                    pending.put(orderId, index * recordsPerSegment + count);
+                }
+                count++;
+            }
+            segments.put(index, segment);
+            if(active != null){
+                seal(active);
+            }
+            active = segment;
+            writeIndex = count;
+        }
+        if(!pending.isEmpty()){
+            log.warn("订单日志里有{}条没确认的记录，超过宽限期后重放", pending.size());
+        }
+    }
+
+    private void roll() throws IOException {
+        long index = active == null ? 0 : active.index + 1;
+        Segment segment = map(index, new File(dir, String.format("%020d", index) + SUFFIX));
+        segments.put(index, segment);
+        if(active != null){
+            seal(active);
+        }
+        active = segment;
+        writeIndex = 0;
+    }
+
+    private Segment map(long index, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            //关闭通道后映射仍然有效，新文件按段大小预分配，内容全是0
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+            return new Segment(index, file, buffer);
+        }
+    }
+
+    private void seal(Segment segment){
+        segment.buffer.force();
+        segment.sealed = true;
+        if(segment.unacked.get() == 0){
+            delete(segment);
+        }
+    }
+
+    private void delete(Segment segment){
+        if(!segment.deleted.compareAndSet(false, true)){
+            return;
+        }
+        segments.remove(segment.index);
+        //映射在buffer被回收时才释放，linux上删除已映射的文件没有问题
+        if(!segment.file.delete()){
+            log.warn("删除订单日志段失败：{}", segment.file);
+        }
+    }
+
+    private void flush(){
+        try {
+            Segment segment = active;
+            if(segment != null){
+                segment.buffer.force();
+            }
+        } catch (Exception e) {
+            log.error("订单日志刷盘失败", e);
+        }
+    }
+
+    /**
+     * 重放超过宽限期还没确认的记录：订单已经落库或者已经有结果的直接确认，真正丢了的交给createVoucherOrder
+     */
+    private void replay(){
+        try {
+            long deadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(graceSeconds);
+            List<VoucherOrder> due = new ArrayList<>();
+            for (Long position : pending.values()) {
+                Segment segment = segments.get(position / recordsPerSegment);
+                if(segment == null){
+                    continue;
+                }
+                int offset = (int) (position % recordsPerSegment) * RECORD_SIZE;
+                if(segment.buffer.getLong(offset + 24) < deadline){
+                    VoucherOrder order = new VoucherOrder();
+                    order.setId(segment.buffer.getLong(offset));
+                    order.setUserId(segment.buffer.getLong(offset + 8));
+                    order.setVoucherId(segment.buffer.getLong(offset + 16));
+                    due.add(order);
+                }
+            }
+            if(due.isEmpty()){
+                return;
+            }
+            //队列里还有没落库的订单时，分不清是丢了还是还没处理，下一轮再看
+            if(!seckillReconciler.isOrderQueueDrained()){
+                return;
+            }
+            for (int from = 0; from < due.size(); from += REPLAY_BATCH) {
+                replay(due.subList(from, Math.min(from + REPLAY_BATCH, due.size())));
+            }
+        } catch (Exception e) {
+            log.error("重放订单日志异常", e);
+        }
+    }
+
+    private void replay(List<VoucherOrder> orders){
+        Set<Long> exists = voucherOrderService.listByIds(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> created = new ArrayList<>();
+        List<VoucherOrder> failed = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            if(exists.contains(order.getId())){
+                ack(order.getId());
+                continue;
+            }
+            OrderStatusDTO status = orderStatusCache.get(order.getId(), order.getUserId());
+            if(status != null && status.isFinished()){
+                //确定失败的订单，只是确认消息丢了
+                ack(order.getId());
+                continue;
+            }
+            try {
+                (voucherOrderService.createVoucherOrder(order) ? created : failed).add(order);
+                log.warn("重放订单日志，orderId={}", order.getId());
+            } catch (Exception e) {
+                //一条坏记录（约束冲突、优惠券被删除等）不能让整轮重放中断，下一轮再试，超过次数后放弃
+                int failures = replayFailures.merge(order.getId(), 1, Integer::sum);
+                if(failures < maxReplays){
+                    log.error("重放订单日志失败，orderId={}，第{}次", order.getId(), failures, e);
+                    continue;
+                }
+                log.error("重放订单日志失败{}次，放弃重放并确认，order={}", failures, order, e);
+                failed.add(order);
+            }
+        }
+        orderTimeoutQueue.add(created);
+        orderStatusCache.update(created, OrderStatusDTO.CREATED);
+        orderStatusCache.update(failed, OrderStatusDTO.FAILED);
+        ack(created);
+        ack(failed);
+        log.debug("重放订单日志{}条，创建{}条", orders.size(), created.size());
+    }
+
+    private static int checksum(long orderId, long userId, long voucherId, long acceptedAt){
+        long h = ((orderId * 31 + userId) * 31 + voucherId) * 31 + acceptedAt;
+        return (int) (h ^ (h >>> 32)) ^ 0x5ec1d0a1;
+    }
+}
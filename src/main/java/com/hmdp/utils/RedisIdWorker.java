@@ -1,15 +1,20 @@
 package com.hmdp.utils;
 
+import com.hmdp.service.IIdWorker;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
@@ -21,19 +26,85 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault();
 
+    /**
+     * 号段大小，大于1时每个节点一次INCRBY预留一段序列号，在本地发放；0或1表示每个id都INCR一次
+     */
+    @Value("${hmdp.id-worker.segment-size:0}")
+    private long segmentSize;
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+    //当天的日期字符串，一天只格式化一次
+    private volatile DateKey dateKey = new DateKey(-1, null);
+
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Segment(long day, long cursor, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(cursor);
+            this.max = max;
+        }
+    }
+
+    private static class DateKey {
+        private final long day;
+        private final String date;
+
+        private DateKey(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
+    @Override
     public long nextId(String keyPrefix){
-        //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSeconds = now.toEpochSecond(ZoneOffset.UTC);
+        //生成时间戳，和LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一样按本地时间计算，但不用创建对象
+        long nowMillis = System.currentTimeMillis();
+        long nowSeconds = (nowMillis + TIME_ZONE.getOffset(nowMillis)) / 1000;
         long time = nowSeconds - BEGIN_TIMESTAMP;
-        //生成序列号
-        //获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-        //自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        //生成序列号，按天自增长
+        long day = nowSeconds / SECONDS_PER_DAY;
+        long count = segmentSize > 1 ? nextCountFromSegment(keyPrefix, day)
+                : stringRedisTemplate.opsForValue().increment(countKey(keyPrefix, day));
         //拼接并返回
         return time << COUNT_BITS | count;
         //左移32位，再或上后缀，和加上count结果一样，或运算更快
     }
+
+    private long nextCountFromSegment(String keyPrefix, long day){
+        while (true){
+            Segment segment = segments.get(keyPrefix);
+            if(segment != null && segment.day == day){
+                long count = segment.cursor.incrementAndGet();
+                if(count <= segment.max){
+                    return count;
+                }
+            }
+            //号段用完了或者换天了，只让一个线程去redis预留下一段
+            synchronized (segments){
+                if(segments.get(keyPrefix) != segment){
+                    //其他线程已经换好了
+                    continue;
+                }
+                long max = stringRedisTemplate.opsForValue().increment(countKey(keyPrefix, day), segmentSize);
+                segments.put(keyPrefix, new Segment(day, max - segmentSize, max));
+            }
+        }
+    }
+
+    private String countKey(String keyPrefix, long day){
+        DateKey current = dateKey;
+        if(current.day != day){
+            //获取当前日期，精确到天
+            current = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateKey = current;
+        }
+        return "icr:" + keyPrefix + ":" + current.date;
+    }
 }
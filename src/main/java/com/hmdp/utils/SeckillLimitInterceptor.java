@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 秒杀接口限流，超出限制的请求直接返回429，不再访问redis和消息队列
+ */
+public class SeckillLimitInterceptor implements HandlerInterceptor {
+    private static final String ENTERED_ATTRIBUTE = SeckillLimitInterceptor.class.getName() + ".entered";
+
+    //这个类是手动生成的，不是spring生成的，由MvcConfig传进来
+    private final SeckillRateLimiter seckillRateLimiter;
+
+    public SeckillLimitInterceptor(SeckillRateLimiter seckillRateLimiter) {
+        this.seckillRateLimiter = seckillRateLimiter;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if(!seckillRateLimiter.isEnabled()){
+            return true;
+        }
+        //先限制全局并发数，处理中的请求太多时直接拒绝
+        if(!seckillRateLimiter.tryEnter()){
+            reject(response, 1000);
+            return false;
+        }
+        //再按优惠券限流
+        Long voucherId = getVoucherId(request);
+        long wait = voucherId == null ? 0 : seckillRateLimiter.tryAcquire(voucherId);
+        if(wait > 0){
+            //preHandle返回false时不会调用这个拦截器的afterCompletion，这里直接归还并发名额
+            seckillRateLimiter.exit();
+            reject(response, wait);
+            return false;
+        }
+        request.setAttribute(ENTERED_ATTRIBUTE, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
+        if(request.getAttribute(ENTERED_ATTRIBUTE) != null){
+            request.removeAttribute(ENTERED_ATTRIBUTE);
+            seckillRateLimiter.exit();
+        }
+    }
+
+    private void reject(HttpServletResponse response, long waitMillis) throws Exception {
+        //Retry-After的单位是秒，不足一秒按一秒
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, (waitMillis + 999) / 1000)));
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("请求太频繁，请稍后再试")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Long getVoucherId(HttpServletRequest request){
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if(variables == null){
+            return null;
+        }
+        try {
+            return Long.valueOf(variables.get("id"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀接口的准入控制：全局并发数限制 + 每个优惠券一个令牌桶
+ * 本地令牌桶限制单个节点的流量，配置了redis-rate时再用redis里的令牌桶限制整个集群的流量
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+    public static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SeckillScheduler seckillScheduler;
+
+    @Value("${hmdp.seckill.limit.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.limit.max-concurrency:200}")
+    private int maxConcurrency;
+    @Value("${hmdp.seckill.limit.rate:1000}")
+    private double rate;
+    @Value("${hmdp.seckill.limit.burst:1000}")
+    private int burst;
+    @Value("${hmdp.seckill.limit.redis-rate:0}")
+    private double redisRate;
+    @Value("${hmdp.seckill.limit.redis-burst:0}")
+    private int redisBurst;
+
+    private Semaphore concurrency;
+    //本地已经有时间窗口的秒杀券才有自己的令牌桶，个数不超过秒杀券的数量
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+    //本地还不知道的优惠券id共用一个令牌桶，随便填的id最多按这个速率打到后面查数据库
+    private TokenBucket unknownBucket;
+
+    /**
+     * 本地令牌桶，按距离上次请求的时间补充令牌
+     */
+    private static class TokenBucket {
+        private final double ratePerNanos;
+        private final double capacity;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        private TokenBucket(double rate, double capacity) {
+            this.ratePerNanos = rate / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return 0表示拿到了令牌，否则返回还要等多少毫秒
+         */
+        private synchronized long tryAcquire(){
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * ratePerNanos);
+            lastNanos = now;
+            if(tokens >= 1){
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) Math.ceil((1 - tokens) / ratePerNanos)));
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        concurrency = new Semaphore(Math.max(1, maxConcurrency));
+        unknownBucket = new TokenBucket(rate, Math.max(1, burst));
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 占用一个并发名额，不等待，请求结束后要调用exit归还
+     */
+    public boolean tryEnter(){
+        if(concurrency.tryAcquire()){
+            return true;
+        }
+        meterRegistry.counter("seckill.limit.rejected", "reason", "concurrency").increment();
+        return false;
+    }
+
+    public void exit(){
+        concurrency.release();
+    }
+
+    /**
+     * 从优惠券的令牌桶里拿一个令牌，先拿本地的，本地通过了再拿redis的
+     * @return 0表示放行，否则返回建议客户端多少毫秒之后重试
+     */
+    public long tryAcquire(Long voucherId){
+        //拦截器在登录之前执行，url里的id可以随便填，这里只看本地已有的时间窗口，不查数据库
+        if(seckillScheduler.getLocalWindow(voucherId) == null){
+            //窗口已经被清掉的券也不再留着它的令牌桶
+            buckets.remove(voucherId);
+            long wait = unknownBucket.tryAcquire();
+            if(wait > 0){
+                meterRegistry.counter("seckill.limit.rejected", "reason", "unknown").increment();
+            }
+            return wait;
+        }
+        long wait = buckets.computeIfAbsent(voucherId, id -> new TokenBucket(rate, Math.max(1, burst))).tryAcquire();
+        if(wait > 0){
+            meterRegistry.counter("seckill.limit.rejected", "reason", "local").increment();
+            return wait;
+        }
+        if(redisRate <= 0){
+            return 0;
+        }
+        try {
+            Long redisWait = stringRedisTemplate.execute(
+                    LIMIT_SCRIPT,
+                    Collections.singletonList(RedisConstants.SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(redisRate), String.valueOf(redisBurst > 0 ? redisBurst : (long) Math.ceil(redisRate))
+            );
+            if(redisWait != null && redisWait > 0){
+                meterRegistry.counter("seckill.limit.rejected", "reason", "redis").increment();
+                return redisWait;
+            }
+        } catch (Exception e) {
+            //限流只是保护手段，redis出问题时放行，由后面的秒杀脚本兜底
+            log.error("集群限流失败，voucherId={}", voucherId, e);
+        }
+        return 0;
+    }
+}
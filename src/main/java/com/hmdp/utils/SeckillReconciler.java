@@ -0,0 +1,411 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀数据对账：redis里的下单用户集合、库存和数据库里的订单、库存对比
+ * 用户按user_id分桶，每一轮只把一个桶的redis用户放进内存，再用游标流式读取数据库里同一个桶的订单做差集，
+ * 内存占用只和桶的大小有关；SSCAN每读一页停顿一下，避免在业务高峰期拖慢redis
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+    private static final String LOCK_KEY = "lock:seckill:reconcile";
+    /**
+     * 复查数据库时每条in查询的用户数
+     */
+    private static final int RECHECK_BATCH = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.reconcile.interval-minutes:0}")
+    private long intervalMinutes;
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+    @Value("${hmdp.seckill.reconcile.sharded-interval-minutes:5}")
+    private long shardedIntervalMinutes;
+    @Value("${hmdp.seckill.reconcile.sharded-repair:true}")
+    private boolean shardedRepair;
+    @Value("${hmdp.seckill.reconcile.bucket-size:50000}")
+    private long bucketSize;
+    @Value("${hmdp.seckill.reconcile.scan-count:500}")
+    private int scanCount;
+    @Value("${hmdp.seckill.reconcile.pause-ms:5}")
+    private long pauseMs;
+    @Value("${hmdp.seckill.reconcile.grace-seconds:30}")
+    private long graceSeconds;
+    @Value("${hmdp.seckill.reconcile.lookback-hours:24}")
+    private long lookbackHours;
+    @Value("${hmdp.seckill.reconcile.max-repair:10000}")
+    private int maxRepair;
+    @Value("${hmdp.seckill.order.group:g1}")
+    private String groupName;
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int workers;
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+    //游标要在事务里遍历，只读事务
+    private TransactionTemplate readOnlyTransaction;
+
+    /**
+     * 一个优惠券的对账结果
+     */
+    @Data
+    public static class Report {
+        private final Long voucherId;
+        /**
+         * redis里有下单资格但数据库里没有订单的用户数，也就是消费时丢掉的订单
+         */
+        private long redisOnly;
+        /**
+         * 数据库里有订单但redis里没有下单资格的用户数
+         */
+        private long dbOnly;
+        /**
+         * 宽限期之后仍然找不到订单的用户数
+         */
+        private long dropped;
+        /**
+         * 数据库库存 - redis可售库存，订单都落库之后应该是0
+         */
+        private long stockDrift;
+        private long repaired;
+        private boolean skipped;
+
+        public boolean isClean(){
+            return redisOnly == 0 && dbOnly == 0 && stockDrift == 0;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        if(intervalMinutes > 0){
+            reconcileExecutor.scheduleWithFixedDelay(this::reconcileAll, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }else if(shardedIntervalMinutes > 0){
+            //分片库存扣减和发送订单消息不是原子的，没有开启全部对账时也要对账分片的秒杀券
+            reconcileExecutor.scheduleWithFixedDelay(() -> reconcileAll(true),
+                    shardedIntervalMinutes, shardedIntervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        reconcileExecutor.shutdownNow();
+    }
+
+    /**
+     * 对账最近结束和还没结束的秒杀券，多个节点同时只有一个在跑
+     */
+    public void reconcileAll(){
+        reconcileAll(false);
+    }
+
+    /**
+     * @param shardedOnly 只对账库存分片的秒杀券
+     */
+    private void reconcileAll(boolean shardedOnly){
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if(!lock.tryLock()){
+            return;
+        }
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query().select("voucher_id")
+                    .ge("end_time", LocalDateTime.now().minusHours(lookbackHours)).list();
+            for (SeckillVoucher voucher : vouchers) {
+                if(shardedOnly && seckillStockShards.shardCount(voucher.getVoucherId()) <= 1){
+                    continue;
+                }
+                try {
+                    reconcile(voucher.getVoucherId());
+                } catch (Exception e) {
+                    log.error("秒杀对账失败，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Report reconcile(Long voucherId){
+        Report report = new Report(voucherId);
+        int shards = seckillStockShards.shardCount(voucherId);
+        //1.按redis和数据库里较多的一方估算分桶数
+        long redisCount = 0;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(orderKey(voucherId, shards, i));
+            redisCount += size == null ? 0 : size;
+        }
+        //已取消的订单已经释放了下单资格，不参与对账
+        long dbCount = voucherOrderMapper.selectCount(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId)
+                .ne("status", SystemConstants.ORDER_STATUS_CANCELLED));
+        int buckets = (int) Math.max(1, (Math.max(redisCount, dbCount) + bucketSize - 1) / bucketSize);
+        //2.逐个桶做差集
+        List<Long> redisOnly = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            diffBucket(voucherId, shards, buckets, bucket, report, redisOnly);
+        }
+        //3.redis里多出来的用户可能只是订单还在队列里，等队列消费完、过了宽限期再查一次数据库
+        if(!redisOnly.isEmpty()){
+            recheckRedisOnly(voucherId, redisOnly, report);
+        }
+        //4.下单资格对齐之后再比较库存
+        long stockAdded = reconcileStock(voucherId, shards, report);
+        if(repair(voucherId) && (report.getRepaired() > 0 || stockAdded > 0)){
+            //redis里补回了库存，清掉售罄标记
+            seckillSoldOutFlags.clear(voucherId);
+        }
+        record(report);
+        return report;
+    }
+
+    private void diffBucket(Long voucherId, int shards, int buckets, int bucket, Report report, List<Long> redisOnly){
+        //这个桶里的redis下单用户
+        Set<Long> members = new HashSet<>();
+        for (int i = 0; i < shards; i++) {
+            scanMembers(orderKey(voucherId, shards, i), buckets, bucket, members);
+        }
+        //流式读取数据库里同一个桶的订单，能对上的从集合里删掉
+        List<Long> dbOnly = new ArrayList<>();
+        readOnlyTransaction.execute(status -> {
+            try (Cursor<Long> cursor = voucherOrderMapper.scanUserIds(voucherId, buckets, bucket)) {
+                for (Long userId : cursor) {
+                    if(members.remove(userId)){
+                        continue;
+                    }
+                    report.dbOnly++;
+                    if(dbOnly.size() < maxRepair){
+                        dbOnly.add(userId);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+        //剩下的是redis里有、数据库里没有的
+        report.redisOnly += members.size();
+        for (Long userId : members) {
+            if(redisOnly.size() >= maxRepair){
+                break;
+            }
+            redisOnly.add(userId);
+        }
+        if(repair(voucherId) && !dbOnly.isEmpty()){
+            //已经有订单的用户补回下单资格，防止重复下单；这一步是幂等的，不用等宽限期
+            for (Long userId : dbOnly) {
+                int home = shards > 1 ? SeckillStockShards.homeShard(userId, shards) : 0;
+                stringRedisTemplate.opsForSet().add(orderKey(voucherId, shards, home), userId.toString());
+                report.repaired++;
+            }
+            log.warn("补回已下单用户的下单资格，voucherId={}，n={}", voucherId, dbOnly.size());
+        }
+    }
+
+    private void scanMembers(String key, int buckets, int bucket, Set<Long> members){
+        ScanOptions options = ScanOptions.scanOptions().count(scanCount).build();
+        try (org.springframework.data.redis.core.Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+            long n = 0;
+            while (cursor.hasNext()) {
+                long userId = Long.parseLong(cursor.next());
+                if(Math.floorMod(userId, buckets) == bucket){
+                    members.add(userId);
+                }
+                //每读一页停顿一下，把对账的压力摊开
+                if(++n % scanCount == 0){
+                    pause(pauseMs);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recheckRedisOnly(Long voucherId, List<Long> redisOnly, Report report){
+        pause(TimeUnit.SECONDS.toMillis(graceSeconds));
+        //队列里还有没落库的订单时，分不清是丢单还是还没处理，这一轮只报告不修复
+        boolean drained = isOrderQueueDrained();
+        for (int from = 0; from < redisOnly.size(); from += RECHECK_BATCH) {
+            List<Long> batch = redisOnly.subList(from, Math.min(from + RECHECK_BATCH, redisOnly.size()));
+            Set<Long> found = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>().select("user_id")
+                            .eq("voucher_id", voucherId).in("user_id", batch).ne("status", SystemConstants.ORDER_STATUS_CANCELLED))
+                    .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            List<Long> dropped = batch.stream().filter(userId -> !found.contains(userId)).collect(Collectors.toList());
+            report.dropped += dropped.size();
+            if(repair(voucherId) && drained && !dropped.isEmpty()){
+                //丢掉的订单：释放下单资格，还回库存，用户可以重新抢
+                report.repaired += seckillStockShards.release(voucherId, dropped);
+            }
+            pause(pauseMs);
+        }
+        if(repair(voucherId) && !drained && report.getDropped() > 0){
+            report.setSkipped(true);
+        }
+    }
+
+    /**
+     * @return 实际补回redis的库存，负数表示扣掉了
+     */
+    private long reconcileStock(Long voucherId, int shards, Report report){
+        //前后读两次redis库存，中间没有变化、队列也消费完了，才认为两边可以直接比较
+        long before = redisAvailableStock(voucherId, shards);
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null){
+            return 0;
+        }
+        long after = redisAvailableStock(voucherId, shards);
+        if(before != after || !isOrderQueueDrained()){
+            report.setSkipped(true);
+            return 0;
+        }
+        long drift = voucher.getStock() - after;
+        report.setStockDrift(drift);
+        if(!repair(voucherId) || drift == 0){
+            return 0;
+        }
+        //还在卖的时候库存一直在变，只报告不修正，等秒杀结束后再修
+        if(isSelling(voucher)){
+            report.setSkipped(true);
+            return 0;
+        }
+        //用增量调整，不覆盖并发的修改；分片时摊到各个分片，每个分片都不会减到负数
+        long applied = seckillStockShards.adjust(voucherId, drift);
+        log.warn("修正redis库存，voucherId={}，drift={}，applied={}", voucherId, drift, applied);
+        return applied;
+    }
+
+    private static boolean isSelling(SeckillVoucher voucher){
+        LocalDateTime now = LocalDateTime.now();
+        return (voucher.getBeginTime() == null || !now.isBefore(voucher.getBeginTime()))
+                && (voucher.getEndTime() == null || !now.isAfter(voucher.getEndTime()));
+    }
+
+    /**
+     * redis里还能卖的库存：各分片库存 + 各节点租走还没卖的额度
+     */
+    private long redisAvailableStock(Long voucherId, int shards){
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, shards, i));
+        }
+        long total = 0;
+        for (String value : stringRedisTemplate.opsForValue().multiGet(keys)) {
+            total += value == null ? 0 : Long.parseLong(value);
+        }
+        if(shards <= 1){
+            Map<Object, Object> leases = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_LEASE_KEY + voucherId);
+            for (Object leased : leases.values()) {
+                total += Long.parseLong(leased.toString());
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 所有订单分区都已经投递完，并且没有未确认的消息
+     */
+    public boolean isOrderQueueDrained(){
+        for (int i = 0; i < workers; i++) {
+            String streamKey = RedisConstants.SECKILL_ORDER_STREAM_KEY + ":" + i;
+            StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(streamKey);
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+            for (int j = 0; j < groups.size(); j++) {
+                StreamInfo.XInfoGroup group = groups.get(j);
+                if(!groupName.equals(group.groupName())){
+                    continue;
+                }
+                if(group.pendingCount() > 0 || !info.lastGeneratedId().equals(group.lastDeliveredId())){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 分片的秒杀券默认修复：扣库存和发送订单消息之间宕机时，丢掉的订单只能靠对账归还
+     */
+    private boolean repair(Long voucherId){
+        return repair || shardedRepair && seckillStockShards.shardCount(voucherId) > 1;
+    }
+
+    private static String orderKey(Long voucherId, int shards, int shard){
+        return shards > 1 ? SeckillStockShards.orderKey(voucherId, shard) : RedisConstants.SECKILL_ORDER_KEY + voucherId;
+    }
+
+    private static String stockKey(Long voucherId, int shards, int shard){
+        return shards > 1 ? SeckillStockShards.stockKey(voucherId, shard) : RedisConstants.SECKILL_STOCK_KEY + voucherId;
+    }
+
+    private void record(Report report){
+        meterRegistry.counter("seckill.reconcile.diff", "type", "redis_only").increment(report.getRedisOnly());
+        meterRegistry.counter("seckill.reconcile.diff", "type", "db_only").increment(report.getDbOnly());
+        meterRegistry.counter("seckill.reconcile.diff", "type", "dropped").increment(report.getDropped());
+        meterRegistry.counter("seckill.reconcile.repaired").increment(report.getRepaired());
+        if(report.isClean()){
+            log.debug("秒杀对账一致：{}", report);
+        }else{
+            log.warn("秒杀对账不一致：{}", report);
+        }
+    }
+
+    private static void pause(long millis){
+        if(millis <= 0){
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀日程
+ * 每个秒杀券的开始、结束时间缓存在本地，时间窗口外的请求直接拒绝，不查数据库也不访问redis；
+ * 用时间轮在开始前预热redis库存，结束后给秒杀相关的key设置过期时间
+ */
+@Slf4j
+@Component
+public class SeckillScheduler implements MessageListener {
+    /**
+     * 本地没有时间窗口的优惠券，多久之后再查一次数据库
+     */
+    private static final long UNKNOWN_RECHECK_MILLIS = 5000L;
+    /**
+     * 最多记住多少个不存在的优惠券id，满了之后先清掉过期的，还是满的就不再记
+     */
+    private static final int MAX_UNKNOWN = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.schedule.warmup-seconds:60}")
+    private long warmupSeconds;
+    @Value("${hmdp.seckill.schedule.cleanup-delay-minutes:1440}")
+    private long cleanupDelayMinutes;
+    @Value("${hmdp.seckill.schedule.rescan-minutes:10}")
+    private long rescanMinutes;
+
+    //一格1秒，一圈1分钟，更远的任务放在上层
+    private final HierarchicalTimingWheel timingWheel = new HierarchicalTimingWheel(1000, 60);
+    private final Map<Long, Window> windows = new ConcurrentHashMap<>();
+    private final Map<Long, Long> unknownUntil = new ConcurrentHashMap<>();
+
+    /**
+     * 秒杀时间窗口，毫秒时间戳
+     */
+    public static class Window {
+        private final long beginMillis;
+        private final long endMillis;
+        private final List<HierarchicalTimingWheel.Timeout> timeouts = new ArrayList<>(3);
+
+        private Window(long beginMillis, long endMillis) {
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+        }
+
+        public long getBeginMillis() {
+            return beginMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        timingWheel.start();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SCHEDULE_CHANNEL));
+        rescan();
+    }
+
+    @PreDestroy
+    private void destroy(){
+        timingWheel.stop();
+    }
+
+    /**
+     * 查询秒杀券的时间窗口，本地没有时查一次数据库
+     * @return null表示不是秒杀券
+     */
+    public Window getWindow(Long voucherId){
+        Window window = windows.get(voucherId);
+        if(window != null){
+            return window;
+        }
+        Long until = unknownUntil.get(voucherId);
+        if(until != null && until > System.currentTimeMillis()){
+            return null;
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null){
+            long now = System.currentTimeMillis();
+            if(unknownUntil.size() >= MAX_UNKNOWN){
+                unknownUntil.values().removeIf(t -> t <= now);
+            }
+            if(unknownUntil.size() < MAX_UNKNOWN){
+                unknownUntil.put(voucherId, now + UNKNOWN_RECHECK_MILLIS);
+            }
+            return null;
+        }
+        return schedule(voucher);
+    }
+
+    /**
+     * 只查本地已经有的时间窗口，不查数据库
+     * @return null表示本地还不知道这个优惠券
+     */
+    public Window getLocalWindow(Long voucherId){
+        return windows.get(voucherId);
+    }
+
+    /**
+     * 秒杀券新增或者修改之后调用，通知所有节点重新安排
+     */
+    public void publish(Long voucherId){
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SCHEDULE_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            SeckillVoucher voucher = seckillVoucherService.getById(Long.valueOf(body));
+            if(voucher != null){
+                schedule(voucher);
+            }
+        } catch (RuntimeException e) {
+            log.error("安排秒杀日程失败，voucherId={}", body, e);
+        }
+    }
+
+    /**
+     * 安排一个秒杀券：开始前预热库存，结束后清理redis，清理时间到了再删除本地的时间窗口
+     */
+    public synchronized Window schedule(SeckillVoucher voucher){
+        Long voucherId = voucher.getVoucherId();
+        //没有设置时间的一边按不限制处理
+        long begin = voucher.getBeginTime() == null ? 0 : toMillis(voucher.getBeginTime());
+        long end = voucher.getEndTime() == null ? Long.MAX_VALUE : toMillis(voucher.getEndTime());
+        Window window = new Window(begin, end);
+        Window old = windows.get(voucherId);
+        if(old != null && old.beginMillis == begin && old.endMillis == end){
+            return old;
+        }
+        long now = System.currentTimeMillis();
+        long cleanupDelay = TimeUnit.MINUTES.toMillis(cleanupDelayMinutes);
+        windows.put(voucherId, window);
+        unknownUntil.remove(voucherId);
+        if(old != null){
+            old.timeouts.forEach(HierarchicalTimingWheel.Timeout::cancel);
+        }
+        if(end < now - cleanupDelay){
+            //早就结束了，redis的key也已经过期，不用预热和清理；
+            //时间窗口也缓存一段时间，这期间的请求直接拒绝，不再查数据库
+            window.timeouts.add(timingWheel.schedule(now + TimeUnit.MINUTES.toMillis(rescanMinutes),
+                    () -> windows.remove(voucherId, window)));
+            return window;
+        }
+        if(now < end){
+            window.timeouts.add(timingWheel.schedule(begin - TimeUnit.SECONDS.toMillis(warmupSeconds), () -> warmup(voucherId)));
+        }
+        if(end != Long.MAX_VALUE){
+            long removeAt = end + cleanupDelay;
+            window.timeouts.add(timingWheel.schedule(end, () -> cleanup(voucherId, removeAt)));
+            window.timeouts.add(timingWheel.schedule(removeAt, () -> windows.remove(voucherId, window)));
+        }
+        return window;
+    }
+
+    private void rescan(){
+        try {
+            //结束时间在清理延迟之内的都要安排，重启之后也能接着清理
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .ge("end_time", LocalDateTime.now().minusMinutes(cleanupDelayMinutes)).list();
+            for (SeckillVoucher voucher : vouchers) {
+                schedule(voucher);
+            }
+        } catch (Exception e) {
+            log.error("加载秒杀日程失败", e);
+        }
+        //清掉过期的不存在标记，随机id扫描不会让这个表一直变大
+        long now = System.currentTimeMillis();
+        unknownUntil.values().removeIf(until -> until <= now);
+        //定期重新加载，防止发布订阅的消息丢失
+        timingWheel.schedule(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(rescanMinutes), this::rescan);
+    }
+
+    private void warmup(Long voucherId){
+        //预热时再查一次库存，安排日程时查到的可能已经过时
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null){
+            return;
+        }
+        //只补上不存在的库存key，不覆盖已经在卖的库存
+        seckillStockShards.warmup(voucherId, voucher.getStock(), seckillStockShards.shardCount(voucherId));
+        log.debug("预热秒杀库存，voucherId={}", voucherId);
+    }
+
+    private void cleanup(Long voucherId, long removeAt){
+        //不马上删除，对账任务还要用下单用户集合；按绝对时间设置过期，重复执行也不会延长
+        long ttl = removeAt - System.currentTimeMillis();
+        if(ttl <= 0){
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        int shards = seckillStockShards.shardCount(voucherId);
+        if(shards > 1){
+            for (int i = 0; i < shards; i++) {
+                keys.add(SeckillStockShards.stockKey(voucherId, i));
+                keys.add(SeckillStockShards.orderKey(voucherId, i));
+            }
+        }else{
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_LEASE_KEY + voucherId);
+        }
+        keys.add(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        for (String key : keys) {
+            stringRedisTemplate.expire(key, ttl, TimeUnit.MILLISECONDS);
+        }
+        log.debug("秒杀结束，redis数据{}ms后过期，voucherId={}", ttl, voucherId);
+    }
+
+    private static long toMillis(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
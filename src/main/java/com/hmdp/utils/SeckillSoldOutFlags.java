@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券本地售罄标记
+ * lua脚本第一次返回库存不足时打上标记，并通过redis发布订阅广播给所有节点，
+ * 之后的请求在本地直接拒绝，不再执行脚本；补充库存时清除标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutFlags implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //发布订阅的消息可能丢失，标记只在这段时间内有效，过期后重新执行一次脚本确认
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:60}")
+    private long ttlSeconds;
+
+    //voucherId -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init(){
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId){
+        Long expireAt = soldOut.get(voucherId);
+        if(expireAt == null){
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()){
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其他节点
+     */
+    public void markSoldOut(Long voucherId){
+        if(isSoldOut(voucherId)){
+            return;
+        }
+        mark(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+    }
+
+    /**
+     * 库存补充后清除售罄标记，并通知其他节点
+     */
+    public void clear(Long voucherId){
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(1));
+            if(body.charAt(0) == '+'){
+                mark(voucherId);
+            }else{
+                soldOut.remove(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.error("售罄消息格式错误：{}", body, e);
+        }
+    }
+
+    private void mark(Long voucherId){
+        soldOut.put(voucherId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+}
@@ -0,0 +1,255 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀库存租约
+ * 每个节点一次从seckill:stock:{id}里租一整块库存，在本地用无锁计数器卖，快卖完时再租下一块，
+ * 判断库存不用再访问redis；没卖完的库存在秒杀结束、长时间没有请求或者节点停止时还回去
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+    public static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    public static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillScheduler seckillScheduler;
+
+    @Value("${hmdp.seckill.mode:script}")
+    private String mode;
+    @Value("${hmdp.seckill.lease.node-id:c1}")
+    private String nodeId;
+    @Value("${hmdp.seckill.lease.size:50}")
+    private int leaseSize;
+    @Value("${hmdp.seckill.lease.idle-seconds:60}")
+    private long idleSeconds;
+
+    private final Map<Long, Quota> quotas = new ConcurrentHashMap<>();
+    //后台续租，不阻塞请求线程
+    private final ExecutorService leaseExecutor = Executors.newSingleThreadExecutor();
+    //定时检查秒杀是否结束、额度是否长时间没用
+    private final ScheduledExecutorService returnExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private static class Quota {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicBoolean leasing = new AtomicBoolean();
+        private final long endMillis;
+        //redis里的库存也租完了，在这个时间之前不再去租
+        private volatile long exhaustedUntil;
+        private volatile long lastAcquire = System.currentTimeMillis();
+
+        private Quota(long endMillis) {
+            this.endMillis = endMillis;
+        }
+    }
+
+    public boolean isEnabled(){
+        return "lease".equals(mode);
+    }
+
+    @PostConstruct
+    private void init(){
+        //上次宕机没来得及归还的额度，按节点id全部还回去
+        returnOrphanLeases();
+        if(isEnabled()){
+            returnExecutor.scheduleWithFixedDelay(this::returnExpiredQuotas, 5, 5, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        returnExecutor.shutdownNow();
+        leaseExecutor.shutdownNow();
+        for (Long voucherId : quotas.keySet()) {
+            returnQuota(voucherId);
+        }
+    }
+
+    /**
+     * 从本地额度里扣一个库存，本地额度用完时同步租下一块
+     * @return false表示库存不足
+     */
+    public boolean tryAcquire(Long voucherId){
+        Quota quota = quotas.computeIfAbsent(voucherId, this::newQuota);
+        quota.lastAcquire = System.currentTimeMillis();
+        while (true){
+            int remaining = quota.remaining.get();
+            if(remaining > 0){
+                if(quota.remaining.compareAndSet(remaining, remaining - 1)){
+                    //快卖完了，提前在后台租下一块
+                    if(remaining - 1 <= leaseSize / 5){
+                        leaseAsync(voucherId, quota);
+                    }
+                    return true;
+                }
+                continue;
+            }
+            if(quota.exhaustedUntil > System.currentTimeMillis()){
+                return false;
+            }
+            //本地额度用完了，同一个优惠券只让一个线程去租
+            synchronized (quota){
+                if(quota.remaining.get() > 0){
+                    continue;
+                }
+                if(lease(voucherId, quota) <= 0){
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 已经扣了本地库存但没能下单（比如重复下单），把库存还给本地额度
+     */
+    public void release(Long voucherId){
+        Quota quota = quotas.get(voucherId);
+        if(quota != null){
+            quota.remaining.incrementAndGet();
+        }
+    }
+
+    public String getNodeId(){
+        return nodeId;
+    }
+
+    /**
+     * 把本地没卖完的额度还给redis
+     */
+    public void returnQuota(Long voucherId){
+        Quota quota = quotas.get(voucherId);
+        if(quota == null){
+            return;
+        }
+        //只清空额度，不移除Quota，避免和正在租库存的线程互相覆盖
+        int n = quota.remaining.getAndSet(0);
+        if(n <= 0){
+            return;
+        }
+        stringRedisTemplate.execute(
+                RETURN_SCRIPT,
+                Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId, RedisConstants.SECKILL_LEASE_KEY + voucherId),
+                nodeId, String.valueOf(n)
+        );
+        log.debug("归还秒杀库存额度，voucherId={}，n={}", voucherId, n);
+    }
+
+    private Quota newQuota(Long voucherId){
+        //秒杀结束时间从本地的秒杀日程里取
+        SeckillScheduler.Window window = seckillScheduler.getWindow(voucherId);
+        return new Quota(window == null ? Long.MAX_VALUE : window.getEndMillis());
+    }
+
+    private long lease(Long voucherId, Quota quota){
+        Long n = stringRedisTemplate.execute(
+                LEASE_SCRIPT,
+                Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId, RedisConstants.SECKILL_LEASE_KEY + voucherId),
+                String.valueOf(leaseSize), nodeId
+        );
+        if(n == null || n <= 0){
+            //库存都被租走了，其他节点归还之前，1秒内不再去租
+            quota.exhaustedUntil = System.currentTimeMillis() + 1000;
+            return 0;
+        }
+        quota.remaining.addAndGet(n.intValue());
+        return n;
+    }
+
+    private void leaseAsync(Long voucherId, Quota quota){
+        if(!quota.leasing.compareAndSet(false, true)){
+            return;
+        }
+        leaseExecutor.submit(() -> {
+            try {
+                if(quota.exhaustedUntil <= System.currentTimeMillis()){
+                    lease(voucherId, quota);
+                }
+            } catch (Exception e) {
+                log.error("租用秒杀库存失败，voucherId={}", voucherId, e);
+            } finally {
+                quota.leasing.set(false);
+            }
+        });
+    }
+
+    private void returnExpiredQuotas(){
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Quota> entry : quotas.entrySet()) {
+            Quota quota = entry.getValue();
+            if(quota.remaining.get() <= 0){
+                continue;
+            }
+            if(now > quota.endMillis || now - quota.lastAcquire > TimeUnit.SECONDS.toMillis(idleSeconds)){
+                try {
+                    returnQuota(entry.getKey());
+                } catch (Exception e) {
+                    log.error("归还秒杀库存额度失败，voucherId={}", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void returnOrphanLeases(){
+        List<String> leaseKeys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().match(RedisConstants.SECKILL_LEASE_KEY + "*").count(1000).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            } catch (Exception e) {
+                log.error("扫描秒杀库存租约失败", e);
+            }
+            return keys;
+        });
+        if(leaseKeys == null){
+            return;
+        }
+        for (String leaseKey : leaseKeys) {
+            String voucherId = leaseKey.substring(RedisConstants.SECKILL_LEASE_KEY.length());
+            Long n = stringRedisTemplate.execute(
+                    RETURN_SCRIPT,
+                    Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId, leaseKey),
+                    nodeId, "-1"
+            );
+            if(n != null && n > 0){
+                log.info("归还上次未归还的秒杀库存额度，voucherId={}，n={}", voucherId, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存分片
+ * 热门秒杀券的库存拆到多个key上，每个分片的库存key和订单key用同一个hash tag，
+ * 不同分片落到Redis Cluster的不同slot上，把一场秒杀的流量分散到多个节点
+ */
+@Component
+public class SeckillStockShards {
+    /**
+     * 没有分片信息的优惠券，多久之后重新查一次
+     */
+    private static final long UNKNOWN_RECHECK_MILLIS = 5000L;
+
+    public static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+    public static final DefaultRedisScript<Long> ADJUST_SCRIPT;
+    static {
+        ADJUST_SCRIPT = new DefaultRedisScript<>();
+        ADJUST_SCRIPT.setLocation(new ClassPathResource("seckill_stock_adjust.lua"));
+        ADJUST_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //分片数在创建秒杀券之后不会再变，查到一次就缓存在本地
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    //查不到分片数的优惠券（老数据或者还没创建），按未分片处理，过一段时间再查
+    private final Map<Long, Long> unknownUntil = new ConcurrentHashMap<>();
+
+    public static String stockKey(Long voucherId, int shard){
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard){
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 用户固定路由到一个分片，一人一单只需要在这个分片里判断
+     */
+    public static int homeShard(Long userId, int shards){
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    /**
+     * 把秒杀库存写入redis，shards大于1时把库存平均拆到各个分片
+     */
+    public void init(Long voucherId, int stock, int shards){
+        if(shards <= 1){
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        }else{
+            //各分片在不同slot上，不能用一条MSET
+            for (int i = 0; i < shards; i++) {
+                //余数分给前面几个分片，总数保持不变
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+            }
+        }
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(Math.max(shards, 1)));
+        shardCounts.put(voucherId, Math.max(shards, 1));
+        unknownUntil.remove(voucherId);
+    }
+
+    /**
+     * 秒杀开始前预热库存，只写入不存在的key，已经在卖的库存不会被覆盖
+     */
+    public void warmup(Long voucherId, int stock, int shards){
+        if(shards <= 1){
+            stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+    }
+
+    /**
+     * 查询优惠券的库存分片数，1表示没有分片
+     */
+    public int shardCount(Long voucherId){
+        Integer count = shardCounts.get(voucherId);
+        if(count != null){
+            return count;
+        }
+        Long until = unknownUntil.get(voucherId);
+        if(until != null && until > System.currentTimeMillis()){
+            return 1;
+        }
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if(StrUtil.isBlank(value)){
+            unknownUntil.put(voucherId, System.currentTimeMillis() + UNKNOWN_RECHECK_MILLIS);
+            return 1;
+        }
+        int shards = Integer.parseInt(value);
+        shardCounts.put(voucherId, shards);
+        unknownUntil.remove(voucherId);
+        return shards;
+    }
+
+    /**
+     * 释放用户的下单资格并归还库存（订单丢失、超时取消），按用户所在分片分组，每个分片执行一次脚本
+     * @return 实际释放的用户数
+     */
+    public long release(Long voucherId, Collection<Long> userIds){
+        int shards = shardCount(voucherId);
+        List<List<String>> groups = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (Long userId : userIds) {
+            groups.get(shards > 1 ? homeShard(userId, shards) : 0).add(userId.toString());
+        }
+        long released = 0;
+        for (int i = 0; i < shards; i++) {
+            List<String> group = groups.get(i);
+            if(group.isEmpty()){
+                continue;
+            }
+            List<String> keys = shards > 1 ? Arrays.asList(orderKey(voucherId, i), stockKey(voucherId, i))
+                    : Arrays.asList(RedisConstants.SECKILL_ORDER_KEY + voucherId, RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            Long n = stringRedisTemplate.execute(RELEASE_SCRIPT, keys, group.toArray());
+            released += n == null ? 0 : n;
+        }
+        return released;
+    }
+
+    /**
+     * 按增量调整redis库存（对账修正），分片时平均摊到各个分片，每个分片调整后都不小于0
+     * 各分片在不同slot上，不能在一个脚本里改，每个分片执行一次脚本，减不完的部分再从还有库存的分片上减
+     * @return 实际调整的库存
+     */
+    public long adjust(Long voucherId, long delta){
+        int shards = shardCount(voucherId);
+        if(shards <= 1){
+            return adjustShard(RedisConstants.SECKILL_STOCK_KEY + voucherId, delta);
+        }
+        long applied = 0;
+        for (int i = 0; i < shards; i++) {
+            //余数分给前面几个分片，和init一样
+            long share = delta / shards + (i < Math.abs(delta % shards) ? Long.signum(delta) : 0);
+            if(share != 0){
+                applied += adjustShard(stockKey(voucherId, i), share);
+            }
+        }
+        for (int i = 0; i < shards && applied != delta; i++) {
+            applied += adjustShard(stockKey(voucherId, i), delta - applied);
+        }
+        return applied;
+    }
+
+    private long adjustShard(String stockKey, long delta){
+        Long n = stringRedisTemplate.execute(ADJUST_SCRIPT, Collections.singletonList(stockKey), String.valueOf(delta));
+        return n == null ? 0 : n;
+    }
+}
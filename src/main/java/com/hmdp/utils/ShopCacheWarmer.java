@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 商铺缓存预热：redis故障切换或者发布之后，逻辑过期的查询在预热之前全部返回null
+ * 一个线程用游标流式读取tb_shop，凑够一批交给编码线程池，编码之后一个管道写入；
+ * 按配置的速率限速，在途的批次数有上限，数据库读得再快也不会把整张表堆在内存里
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer {
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String SKIPPED = "skipped";
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.warm-up.on-startup:false}")
+    private boolean onStartup;
+    @Value("${hmdp.cache.warm-up.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.cache.warm-up.threads:4}")
+    private int threads;
+    @Value("${hmdp.cache.warm-up.rate:5000}")
+    private long rate;
+
+    //读游标的线程，同一时间只跑一次预热
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor();
+    //编码和写入redis的线程
+    private ExecutorService writeExecutor;
+    //游标要在事务里遍历，只读事务
+    private TransactionTemplate readOnlyTransaction;
+    //最近一次预热的进度
+    private final AtomicReference<Progress> last = new AtomicReference<>();
+
+    /**
+     * 一次预热的进度，条件为null表示不限制
+     */
+    @Data
+    public static class Progress {
+        private final Long typeId;
+        private final Long minId;
+        private final Long maxId;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile long finishedAt;
+        private volatile String state = RUNNING;
+        private volatile String error;
+        /**
+         * 从数据库读出的商铺数
+         */
+        private final AtomicLong scanned = new AtomicLong();
+        /**
+         * 已经写入redis的商铺数
+         */
+        private final AtomicLong written = new AtomicLong();
+        /**
+         * 写入失败的商铺数
+         */
+        private final AtomicLong failed = new AtomicLong();
+
+        public boolean isRunning(){
+            return RUNNING.equals(state);
+        }
+
+        private void finish(String state, String error){
+            this.error = error;
+            this.finishedAt = System.currentTimeMillis();
+            this.state = state;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        writeExecutor = Executors.newFixedThreadPool(Math.max(1, threads));
+        if(onStartup){
+            start(null, null, null);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        warmUpExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    /**
+     * 在后台开始预热
+     * @return 这次预热的进度；这个节点上已经有预热在跑时返回null
+     */
+    public Progress start(Long typeId, Long minId, Long maxId){
+        Progress current = last.get();
+        if(current != null && current.isRunning()){
+            return null;
+        }
+        Progress progress = new Progress(typeId, minId, maxId);
+        if(!last.compareAndSet(current, progress)){
+            return null;
+        }
+        warmUpExecutor.execute(() -> run(progress));
+        return progress;
+    }
+
+    /**
+     * @return 最近一次预热的进度，没有预热过时返回null
+     */
+    public Progress progress(){
+        return last.get();
+    }
+
+    private void run(Progress progress){
+        //多个节点同时启动时只有一个在预热
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SHOP_WARM_UP_KEY);
+        if(!lock.tryLock()){
+            progress.finish(SKIPPED, "其他节点正在预热");
+            return;
+        }
+        try {
+            warmUp(progress);
+            progress.finish(progress.getFailed().get() == 0 ? DONE : FAILED, null);
+            log.info("商铺缓存预热完成：{}", progress);
+        } catch (Exception e) {
+            progress.finish(FAILED, e.getMessage());
+            log.error("商铺缓存预热失败：{}", progress, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void warmUp(Progress progress){
+        //在途的批次数有上限，写得慢的时候读游标的线程停下来等
+        int maxInFlight = Math.max(1, threads) * 2;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long begin = System.currentTimeMillis();
+        try {
+            readOnlyTransaction.execute(status -> {
+                try (Cursor<Shop> cursor = shopMapper.scanShops(progress.getTypeId(), progress.getMinId(), progress.getMaxId())) {
+                    List<Shop> batch = new ArrayList<>(batchSize);
+                    for (Shop shop : cursor) {
+                        batch.add(shop);
+                        progress.getScanned().incrementAndGet();
+                        if(batch.size() >= batchSize){
+                            submit(batch, progress, inFlight, begin);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if(!batch.isEmpty()){
+                        submit(batch, progress, inFlight, begin);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } finally {
+            //等所有批次写完
+            inFlight.acquireUninterruptibly(maxInFlight);
+        }
+    }
+
+    private void submit(List<Shop> batch, Progress progress, Semaphore inFlight, long begin){
+        //限速：按已经读出的数量算出这一批最早什么时候可以写
+        if(rate > 0){
+            long due = begin + progress.getScanned().get() * 1000 / rate;
+            pause(due - System.currentTimeMillis());
+        }
+        inFlight.acquireUninterruptibly();
+        try {
+            writeExecutor.execute(() -> {
+                try {
+                    cacheClient.setBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, batch, Shop::getId,
+                            RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+                    progress.getWritten().addAndGet(batch.size());
+                    meterRegistry.counter("cache.warmup.written", "prefix", RedisConstants.CACHE_SHOP_KEY).increment(batch.size());
+                } catch (Exception e) {
+                    progress.getFailed().addAndGet(batch.size());
+                    log.error("商铺缓存预热写入失败，n={}", batch.size(), e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private static void pause(long millis){
+        if(millis <= 0){
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("商铺缓存预热被中断", e);
+        }
+    }
+}
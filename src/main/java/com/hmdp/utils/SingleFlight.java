@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 同一个节点上对同一个key的并发加载合并成一次：
+ * 第一个线程执行加载，其他线程挂在同一个future上等结果，不轮询也不重复查询
+ */
+public class SingleFlight {
+    //key -> 正在进行的加载
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @param shared 没有抢到执行权、等别人结果时回调，用来计数
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, Runnable shared){
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, call);
+        if(existing != null){
+            shared.run();
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                //把加载线程的异常原样抛给等待的线程
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }
+                if(cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            T value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            //complete之后才移除，这期间到达的线程直接拿到结果，不会再加载一次
+            calls.remove(key, call);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.service.IIdWorker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花算法id生成器：时间戳 + worker id + 毫秒内序列号，生成id不访问网络
+ * worker id启动时从redis租用，定时续期，保证同一时刻不会有两个节点用同一个worker id
+ * 配置hmdp.id-worker.type=snowflake时才启用，并代替RedisIdWorker注入到IIdWorker
+ * 从RedisIdWorker迁移：两种id的时间部分增长速度几乎一样（每秒约4.19e9和4.29e9），直接切换会落进已经发过的id区间，
+ * 所以雪花id固定把第62位置1，比RedisIdWorker在2056年之前发出的所有id（都小于2^62）都大，切换后订单id仍然递增、不会和老订单重复；
+ * 切换之后不能再切回RedisIdWorker，否则新id会比雪花id小
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id-worker.type", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+    /**
+     * 开始时间戳，毫秒，和RedisIdWorker一样从2022-01-01开始
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    /**
+     * 雪花id的标记位，和RedisIdWorker的id区间分开；时间戳剩下40位，可以用到2056年
+     */
+    private static final long MARKER = 1L << 62;
+    private static final int TIMESTAMP_BITS = 40;
+    /**
+     * worker id的位数，最多1024个节点
+     */
+    private static final int WORKER_BITS = 10;
+    /**
+     * 毫秒内序列号的位数，每毫秒最多4096个id
+     */
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final String WORKER_KEY_PREFIX = "idworker:worker:";
+
+    public static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    public static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("idworker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("idworker_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.id-worker.snowflake.lease-seconds:30}")
+    private long leaseSeconds;
+    @Value("${hmdp.id-worker.snowflake.max-backward-ms:5}")
+    private long maxBackwardMs;
+
+    //本节点的标识，续期和释放时用来确认租约还是自己的
+    private final String token = UUID.fastUUID().toString(true);
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile long workerId = -1;
+    //租约到期时间，过了这个时间还没续上就不能再发id，否则可能和拿到同一个worker id的节点重复
+    private volatile long leaseExpireAt;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    @PostConstruct
+    private void init(){
+        acquireWorkerId();
+        long period = Math.max(1, leaseSeconds / 3);
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        heartbeatExecutor.shutdownNow();
+        if(workerId >= 0){
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(WORKER_KEY_PREFIX + workerId), token);
+        }
+    }
+
+    /**
+     * keyPrefix只是为了和RedisIdWorker保持一样的调用方式，雪花id全局唯一，不区分业务
+     */
+    @Override
+    public synchronized long nextId(String keyPrefix){
+        long now = System.currentTimeMillis();
+        if(workerId < 0 || now >= leaseExpireAt){
+            throw new IllegalStateException("worker id租约已失效，暂时不能生成id");
+        }
+        if(now < lastTimestamp){
+            long offset = lastTimestamp - now;
+            if(offset <= maxBackwardMs){
+                //时钟回拨不多，等时钟追上来
+                try {
+                    Thread.sleep(offset);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待时钟回拨时被中断", e);
+                }
+                now = System.currentTimeMillis();
+            }
+            if(now < lastTimestamp){
+                //回拨太多，继续沿用上次的时间戳借用序列号，不让id变小
+                log.warn("时钟回拨{}ms，借用序列号生成id", lastTimestamp - now);
+                now = lastTimestamp;
+            }
+        }
+        if(now == lastTimestamp){
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if(sequence == 0){
+                //这一毫秒的序列号用完了，等下一毫秒；时钟回拨期间直接借用下一毫秒
+                now = waitNextMillis(lastTimestamp);
+            }
+        }else{
+            sequence = 0;
+        }
+        lastTimestamp = now;
+        long time = now - BEGIN_TIMESTAMP;
+        if(time >>> TIMESTAMP_BITS != 0){
+            throw new IllegalStateException("雪花id的时间戳已经用完");
+        }
+        return MARKER | time << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private long waitNextMillis(long last){
+        long now = System.currentTimeMillis();
+        if(now < last){
+            return last + 1;
+        }
+        while (now <= last){
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    private void acquireWorkerId(){
+        //从随机位置开始找空闲的worker id，减少多个节点同时启动时的冲突
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY_PREFIX + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if(BooleanUtil.isTrue(success)){
+                leaseExpireAt = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                workerId = id;
+                log.info("租用worker id成功：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    private void heartbeat(){
+        try {
+            long now = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + workerId),
+                    token, String.valueOf(TimeUnit.SECONDS.toMillis(leaseSeconds))
+            );
+            if(renewed != null && renewed == 1){
+                leaseExpireAt = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                return;
+            }
+            //租约已经过期被别人拿走了，换一个worker id
+            log.warn("worker id {}的租约已丢失，重新租用", workerId);
+            synchronized (this){
+                workerId = -1;
+                acquireWorkerId();
+            }
+        } catch (Exception e) {
+            //续期失败先不处理，租约到期前还有机会；到期后nextId会拒绝生成
+            log.error("worker id续期失败", e);
+        }
+    }
+}
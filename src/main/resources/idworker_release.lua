@@ -0,0 +1,10 @@
+--worker id的租约key
+local key = KEYS[1]
+--本节点的标识
+local token = ARGV[1]
+
+--只释放自己持有的租约
+if(redis.call('get',key) == token) then
+    return redis.call('del',key)
+end
+return 0
@@ -0,0 +1,12 @@
+--worker id的租约key
+local key = KEYS[1]
+--本节点的标识
+local token = ARGV[1]
+--租约时长，毫秒
+local ttl = ARGV[2]
+
+--还是自己持有的租约才续期，过期后被别的节点拿走了就返回0
+if(redis.call('get',key) == token) then
+    return redis.call('pexpire',key,ttl)
+end
+return 0
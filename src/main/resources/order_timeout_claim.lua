@@ -0,0 +1,31 @@
+--待取消订单的延迟队列，score是支付截止时间
+local queueKey = KEYS[1]
+--已经领取、正在处理的订单，score是领取的有效期
+local processingKey = KEYS[2]
+
+--当前时间，毫秒
+local now = tonumber(ARGV[1])
+--一次最多领取的订单数
+local limit = tonumber(ARGV[2])
+--领取的有效期，过了这个时间还没处理完，其他节点可以重新领取
+local claimUntil = ARGV[3]
+
+--先接管领取后没处理完的订单，领取它们的节点可能已经宕机
+local ids = redis.call('zrangebyscore',processingKey,'-inf',now,'LIMIT',0,limit)
+
+--再领取已经到期的订单
+if(#ids < limit) then
+    local due = redis.call('zrangebyscore',queueKey,'-inf',now,'LIMIT',0,limit - #ids)
+    if(#due > 0) then
+        redis.call('zrem',queueKey,unpack(due))
+        for i = 1, #due do
+            ids[#ids + 1] = due[i]
+        end
+    end
+end
+
+--放进处理中集合，处理完由调用方删除
+for i = 1, #ids do
+    redis.call('zadd',processingKey,claimUntil,ids[i])
+end
+return ids
@@ -1,7 +1,16 @@
---订单id
+--订单消息队列key
+local streamKey = KEYS[1]
+--订单状态key
+local statusKey = KEYS[2]
+
+--优惠券id
 local voucherId = ARGV[1]
 --用户id
 local userId = ARGV[2]
+--订单id
+local orderId = ARGV[3]
+--订单状态有效期，秒
+local statusTtl = ARGV[4]
 
 --库存key
 local stockKey = 'seckill:stock:' .. voucherId
@@ -9,11 +18,26 @@ local stockKey = 'seckill:stock:' .. voucherId
 --订单key
 local orderKey = 'seckill:order:' .. voucherId
 
+--秒杀时间窗口，毫秒；用redis的时间判断，各节点时钟不一致也不影响
+local beginTime = tonumber(ARGV[5])
+local endTime = tonumber(ARGV[6])
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < beginTime) then
+    --秒杀尚未开始
+    return 4;
+end
+if(now > endTime) then
+    --秒杀已经结束
+    return 5;
+end
+
 --判断库存是否充足 get stockKey
 local stock = redis.call('get',stockKey)
 local number = tonumber(stock)
 --if(tonumber(redis.call('get',stockKey)) <= 0) then
-if(number <= 0) then
+if(number == nil or number <= 0) then
     return 1;
 end
 
@@ -29,4 +53,11 @@ redis.call('incrby',stockKey,-1)
 
 --下单（保存用户）sadd orderKey userId
 redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+
+--订单状态记为处理中，落库后由消费者改成已创建或失败
+redis.call('hset',statusKey,'status','PENDING','userId',userId)
+redis.call('expire',statusKey,statusTtl)
+
+--发送消息到队列中，和扣库存在同一个脚本里，保证已接受的订单一定进入队列 xadd streamKey * k1 v1 ...
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+return 0
@@ -0,0 +1,21 @@
+--库存key
+local stockKey = KEYS[1]
+--租约key，记录每个节点手里还没卖出去的库存
+local leaseKey = KEYS[2]
+
+--一次租多少库存
+local size = tonumber(ARGV[1])
+--节点id
+local nodeId = ARGV[2]
+
+--库存已经被租完了
+local stock = tonumber(redis.call('get',stockKey))
+if(stock == nil or stock <= 0) then
+    return 0;
+end
+
+--剩余库存不够一整块时，有多少租多少
+local n = math.min(stock,size)
+redis.call('incrby',stockKey,-n)
+redis.call('hincrby',leaseKey,nodeId,n)
+return n
@@ -0,0 +1,51 @@
+--订单key
+local orderKey = KEYS[1]
+--租约key
+local leaseKey = KEYS[2]
+--订单消息队列key
+local streamKey = KEYS[3]
+--订单状态key
+local statusKey = KEYS[4]
+
+--用户id
+local userId = ARGV[1]
+--优惠券id
+local voucherId = ARGV[2]
+--订单id
+local orderId = ARGV[3]
+--节点id
+local nodeId = ARGV[4]
+--订单状态有效期，秒
+local statusTtl = ARGV[5]
+
+--秒杀时间窗口，毫秒；用redis的时间判断，各节点时钟不一致也不影响
+local beginTime = tonumber(ARGV[6])
+local endTime = tonumber(ARGV[7])
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < beginTime) then
+    --秒杀尚未开始
+    return 4;
+end
+if(now > endTime) then
+    --秒杀已经结束
+    return 5;
+end
+
+--库存已经在节点本地扣过了，这里只判断全局的一人一单
+if(redis.call('sismember',orderKey,userId) == 1) then
+    return 2;
+end
+redis.call('sadd',orderKey,userId)
+
+--租到的库存卖出一个，节点宕机后只需要归还剩下的
+redis.call('hincrby',leaseKey,nodeId,-1)
+
+--订单状态记为处理中
+redis.call('hset',statusKey,'status','PENDING','userId',userId)
+redis.call('expire',statusKey,statusTtl)
+
+--发送消息到队列中
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+return 0
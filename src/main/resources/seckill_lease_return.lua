@@ -0,0 +1,21 @@
+--库存key
+local stockKey = KEYS[1]
+--租约key
+local leaseKey = KEYS[2]
+
+--节点id
+local nodeId = ARGV[1]
+--归还的数量，-1表示归还这个节点登记的全部库存（节点宕机重启后）
+local n = tonumber(ARGV[2])
+
+local leased = tonumber(redis.call('hget',leaseKey,nodeId))
+if(leased == nil or leased <= 0) then
+    return 0;
+end
+--最多只能归还登记过的数量，避免重复归还把库存变多
+if(n < 0 or n > leased) then
+    n = leased
+end
+redis.call('hincrby',leaseKey,nodeId,-n)
+redis.call('incrby',stockKey,n)
+return n
@@ -0,0 +1,36 @@
+--令牌桶key
+local key = KEYS[1]
+--每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+--桶的容量，允许的突发请求数
+local burst = tonumber(ARGV[2])
+
+--用redis的时间，各节点时钟不一致也不影响
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if(tokens == nil or ts == nil) then
+    --第一次请求，桶是满的
+    tokens = burst
+    ts = now
+end
+
+--按距离上次请求的时间补充令牌
+tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+
+local wait = 0
+if(tokens >= 1) then
+    tokens = tokens - 1
+else
+    --令牌不够，返回还要等多少毫秒
+    wait = math.ceil((1 - tokens) * 1000 / rate)
+end
+
+redis.call('hset', key, 'tokens', tokens, 'ts', now)
+--桶补满之后key就没用了，过期删除
+redis.call('pexpire', key, math.ceil(burst * 1000 / rate) + 1000)
+return wait
@@ -0,0 +1,15 @@
+--订单key
+local orderKey = KEYS[1]
+--库存key，分片时和订单key在同一个slot
+local stockKey = KEYS[2]
+
+--ARGV是要释放的用户id，可以有多个
+--释放下单资格，把扣掉的库存还回去；已经不在集合里的用户不重复归还
+local n = 0
+for i = 1, #ARGV do
+    n = n + redis.call('srem',orderKey,ARGV[i])
+end
+if(n > 0) then
+    redis.call('incrby',stockKey,n)
+end
+return n
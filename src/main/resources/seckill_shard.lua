@@ -0,0 +1,40 @@
+--本分片库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+--本分片订单key seckill:order:{voucherId:i}，和库存key的hash tag相同，在同一个slot
+local orderKey = KEYS[2]
+
+--用户id
+local userId = ARGV[1]
+
+--秒杀时间窗口，毫秒；用redis的时间判断，各节点时钟不一致也不影响
+local beginTime = tonumber(ARGV[2])
+local endTime = tonumber(ARGV[3])
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < beginTime) then
+    --秒杀尚未开始
+    return 4;
+end
+if(now > endTime) then
+    --秒杀已经结束
+    return 5;
+end
+
+--判断用户是否下单，用户总是路由到同一个分片，这里就是全局的一人一单
+if(redis.call('sismember',orderKey,userId) == 1) then
+    return 2;
+end
+
+--先占住下单资格，库存可能从其他分片扣
+redis.call('sadd',orderKey,userId)
+
+--本分片库存充足，直接扣减
+local number = tonumber(redis.call('get',stockKey))
+if(number ~= nil and number > 0) then
+    redis.call('incrby',stockKey,-1)
+    return 0;
+end
+
+--本分片没有库存了，由调用方去其他分片扣，都没有库存时再释放资格
+return 3
@@ -0,0 +1,10 @@
+--分片库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+
+--本分片库存充足才扣减，保证所有分片加起来不会超卖
+local number = tonumber(redis.call('get',stockKey))
+if(number == nil or number <= 0) then
+    return 1;
+end
+redis.call('incrby',stockKey,-1)
+return 0
@@ -0,0 +1,14 @@
+--库存key，分片时每个分片单独执行一次
+local stockKey = KEYS[1]
+--要调整的库存，可以是负数
+local delta = tonumber(ARGV[1])
+
+--调整后不能小于0，减不完的部分由调用方摊到其他分片
+local stock = tonumber(redis.call('get',stockKey) or '0')
+if(stock + delta < 0) then
+    delta = -stock
+end
+if(delta ~= 0) then
+    redis.call('incrby',stockKey,delta)
+end
+return delta
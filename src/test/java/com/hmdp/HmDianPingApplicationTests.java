@@ -4,11 +4,19 @@ import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -44,4 +52,44 @@ class HmDianPingApplicationTests {
         long end = System.currentTimeMillis();
         System.out.println(end - begin);
     }
+
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        //号段模式：每个节点一次INCRBY预留1000个序列号，对比每个id都INCR一次的吞吐量
+        int threads = 300;
+        int idsPerThread = 300;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicBoolean monotonic = new AtomicBoolean(true);
+        Object segmentSize = ReflectionTestUtils.getField(redisIdWorker, "segmentSize");
+        ReflectionTestUtils.setField(redisIdWorker, "segmentSize", 1000L);
+        try {
+            CountDownLatch latch = new CountDownLatch(threads);
+            Runnable task = ()->{
+                long last = 0;
+                for(int i = 0;i < idsPerThread;i ++){
+                    long id = redisIdWorker.nextId("order");
+                    //同一个线程拿到的id必须递增
+                    if(id <= last){
+                        monotonic.set(false);
+                    }
+                    last = id;
+                    ids.add(id);
+                }
+                latch.countDown();
+            };
+
+            long begin = System.nanoTime();
+            for(int i = 0;i < threads;i ++){
+                es.submit(task);
+            }
+            latch.await();
+            long cost = System.nanoTime() - begin;
+            System.out.println("segment: " + threads * idsPerThread + " ids in " + TimeUnit.NANOSECONDS.toMillis(cost)
+                    + " ms, " + (long) (threads * idsPerThread * 1e9 / cost) + " ids/s");
+        } finally {
+            ReflectionTestUtils.setField(redisIdWorker, "segmentSize", segmentSize);
+        }
+        assertEquals(threads * idsPerThread, ids.size());
+        assertTrue(monotonic.get());
+    }
 }
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdminInterceptorTest {
+
+    @Test
+    void disabledHidesEndpoints() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(new AdminInterceptor(false, false).preHandle(request("127.0.0.1"), response, null));
+        assertEquals(404, response.getStatus());
+    }
+
+    @Test
+    void localOnlyRejectsRemoteCallers() throws Exception {
+        AdminInterceptor interceptor = new AdminInterceptor(true, true);
+        for (String local : new String[]{"127.0.0.1", "0:0:0:0:0:0:0:1"}) {
+            assertTrue(interceptor.preHandle(request(local), new MockHttpServletResponse(), null), local);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(interceptor.preHandle(request("10.0.0.8"), response, null));
+        assertEquals(403, response.getStatus());
+    }
+
+    @Test
+    void remoteCallersAllowedWhenNotLocalOnly() throws Exception {
+        assertTrue(new AdminInterceptor(true, false).preHandle(request("10.0.0.8"), new MockHttpServletResponse(), null));
+    }
+
+    private static MockHttpServletRequest request(String remoteAddr){
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/admin/cache/shop/warm-up");
+        request.setRemoteAddr(remoteAddr);
+        return request;
+    }
+}
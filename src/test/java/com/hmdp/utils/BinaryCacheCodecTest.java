@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryCacheCodecTest {
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    private static Shop shop(){
+        Shop shop = new Shop();
+        shop.setId(42L);
+        shop.setName("店铺 42");
+        shop.setTypeId(1L);
+        shop.setArea("area_1");
+        shop.setAddress("address_42");
+        shop.setX(120.149993);
+        shop.setY(-30.334229);
+        shop.setAvgPrice(-5L);
+        shop.setSold(Integer.MAX_VALUE);
+        shop.setComments(0);
+        shop.setScore(Integer.MIN_VALUE);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 10, 30, 15, 123456789));
+        shop.setUpdateTime(LocalDateTime.of(1960, 1, 1, 0, 0, 0, 1));
+        //不是数据库字段，也要原样保存
+        shop.setDistance(1234.5);
+        return shop;
+    }
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = shop();
+        long expireAt = System.currentTimeMillis() + 20_000;
+        byte[] bytes = codec.encode(shop, expireAt);
+        assertTrue(codec.accepts(bytes));
+
+        CacheCodec.Decoded<Shop> decoded = codec.decode(bytes, Shop.class, true);
+        assertNotNull(decoded);
+        assertEquals(shop, decoded.getValue());
+        assertEquals(expireAt, decoded.getExpireAt());
+        assertEquals(1234.5, decoded.getValue().getDistance());
+    }
+
+    @Test
+    void nullFieldsStayNull() {
+        //images没有设置，其他字段大部分为null
+        Shop shop = new Shop();
+        shop.setId(7L);
+        shop.setCreateTime(LocalDateTime.of(2000, 2, 29, 23, 59, 59));
+
+        CacheCodec.Decoded<Shop> decoded = codec.decode(codec.encode(shop, CacheCodec.NO_EXPIRE), Shop.class, false);
+        assertNotNull(decoded);
+        assertEquals(shop, decoded.getValue());
+        assertNull(decoded.getValue().getImages());
+        assertNull(decoded.getValue().getDistance());
+        assertEquals(CacheCodec.NO_EXPIRE, decoded.getExpireAt());
+    }
+
+    @Test
+    void localDateTimeRoundTrip() {
+        for (LocalDateTime time : Arrays.asList(
+                LocalDateTime.of(1970, 1, 1, 0, 0),
+                LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999_999_999),
+                LocalDateTime.of(2038, 1, 19, 3, 14, 8, 500),
+                LocalDateTime.of(9999, 12, 31, 23, 59, 59))) {
+            CacheCodec.Decoded<LocalDateTime> decoded = codec.decode(codec.encode(time, 1L), LocalDateTime.class, true);
+            assertNotNull(decoded);
+            assertEquals(time, decoded.getValue());
+        }
+    }
+
+    @Test
+    void collectionRoundTrip() {
+        //写入时是具体的实现类，读取时传接口
+        List<String> ids = Arrays.asList("1", "2", "3");
+        CacheCodec.Decoded<List> decoded = codec.decode(codec.encode(ids, CacheCodec.NO_EXPIRE), List.class, false);
+        assertNotNull(decoded);
+        assertEquals(ids, decoded.getValue());
+    }
+
+    @Test
+    void schemaMismatchIsMiss() {
+        byte[] bytes = codec.encode(shop(), CacheCodec.NO_EXPIRE);
+        //其他类写入的值
+        assertNull(codec.decode(bytes, ShopV2.class, false));
+        //类结构哈希对不上，相当于字段变了
+        byte[] changed = bytes.clone();
+        changed[2] ^= 1;
+        assertNull(codec.decode(changed, Shop.class, false));
+    }
+
+    @Test
+    void truncatedInputIsMiss() {
+        byte[] bytes = codec.encode(shop(), 1L);
+        for (int length = 0; length < bytes.length; length++) {
+            assertNull(codec.decode(Arrays.copyOf(bytes, length), Shop.class, true), "length=" + length);
+        }
+    }
+
+    @Test
+    void jsonIsNotAccepted() {
+        byte[] json = new JsonCacheCodec().encode(shop(), 1L);
+        assertFalse(codec.accepts(json));
+        assertNull(codec.decode(json, Shop.class, true));
+    }
+
+    @Test
+    void readBothDecodesJsonAndBinary() {
+        Shop shop = shop();
+        //json格式的时间只保留到毫秒，这里用整秒
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 10, 30, 15));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 1, 8, 0));
+        long expireAt = (System.currentTimeMillis() / 1000 + 20) * 1000;
+        byte[] json = new JsonCacheCodec().encode(shop, expireAt);
+        byte[] binary = codec.encode(shop, expireAt);
+
+        CacheClient readBoth = cacheClient("binary", true);
+        for (byte[] bytes : Arrays.asList(json, binary)) {
+            CacheCodec.Decoded<Shop> decoded = ReflectionTestUtils.invokeMethod(readBoth, "decode", bytes, Shop.class, true);
+            assertNotNull(decoded);
+            assertEquals(shop.getId(), decoded.getValue().getId());
+            assertEquals(shop.getName(), decoded.getValue().getName());
+            assertEquals(shop.getCreateTime(), decoded.getValue().getCreateTime());
+            assertEquals(expireAt, decoded.getExpireAt());
+        }
+
+        //关闭迁移模式后只认写入用的格式
+        CacheClient binaryOnly = cacheClient("binary", false);
+        assertNull(ReflectionTestUtils.invokeMethod(binaryOnly, "decode", json, Shop.class, true));
+        assertNotNull(ReflectionTestUtils.invokeMethod(binaryOnly, "decode", binary, Shop.class, true));
+        CacheClient jsonOnly = cacheClient("json", false);
+        assertNull(ReflectionTestUtils.invokeMethod(jsonOnly, "decode", binary, Shop.class, true));
+        assertNotNull(ReflectionTestUtils.invokeMethod(jsonOnly, "decode", json, Shop.class, true));
+    }
+
+    @Test
+    void binaryIsCompactAndDeterministic() {
+        byte[] json = new JsonCacheCodec().encode(shop(), 1L);
+        byte[] binary = codec.encode(shop(), 1L);
+        assertTrue(binary.length < json.length, binary.length + " >= " + json.length);
+        assertArrayEquals(binary, codec.encode(shop(), 1L));
+    }
+
+    /**
+     * decode只用到编码相关的配置，其他依赖不需要
+     */
+    private static CacheClient cacheClient(String codecType, boolean readBoth){
+        return new CacheClient(null, null, null, null, null, codecType, readBoth, 3000, 1.0, 0.1);
+    }
+
+    /**
+     * 多了一个字段的商铺
+     */
+    static class ShopV2 extends Shop {
+        private String tags;
+    }
+}
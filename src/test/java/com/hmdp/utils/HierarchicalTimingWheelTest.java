@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HierarchicalTimingWheelTest {
+    //每格10ms，一圈4格：第一层40ms，第二层160ms，第三层640ms
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 4;
+
+    private final HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(TICK_MS, WHEEL_SIZE);
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    void taskBeyondOneLevelCascadesDownAndRunsOnTime() throws Exception {
+        long expiration = System.currentTimeMillis() + 500;
+        AtomicLong firedAt = new AtomicLong();
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(expiration, () -> {
+            firedAt.set(System.currentTimeMillis());
+            fired.countDown();
+        });
+        //500ms超过了前两层，要创建到第三层
+        Object root = ReflectionTestUtils.getField(wheel, "root");
+        Object second = ReflectionTestUtils.getField(root, "overflow");
+        assertNotNull(second);
+        assertNotNull(ReflectionTestUtils.getField(second, "overflow"));
+
+        wheel.start();
+        assertTrue(fired.await(3, TimeUnit.SECONDS));
+        //放回最底层时按格子对齐，最多提前一格
+        assertTrue(firedAt.get() >= expiration - TICK_MS, "提前执行了" + (expiration - firedAt.get()) + "ms");
+    }
+
+    @Test
+    void tasksAcrossLevelsRunInExpirationOrder() throws Exception {
+        long now = System.currentTimeMillis();
+        long[] delays = {600, 30, 250, 120};
+        List<Long> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        for (long delay : delays) {
+            wheel.schedule(now + delay, () -> {
+                order.add(delay);
+                fired.countDown();
+            });
+        }
+        wheel.start();
+        assertTrue(fired.await(3, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(30L, 120L, 250L, 600L), order);
+    }
+
+    @Test
+    void pastDueTaskRunsImmediately() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        //没有start，时间轮不推进，只能是添加的时候直接执行
+        wheel.schedule(System.currentTimeMillis() - 1000, fired::countDown);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        Object root = ReflectionTestUtils.getField(wheel, "root");
+        assertNull(ReflectionTestUtils.getField(root, "overflow"));
+    }
+
+    @Test
+    void cancelledTasksNeverRun() throws Exception {
+        long now = System.currentTimeMillis();
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        //一个在最底层，添加后马上取消；一个在上层，时间轮推进了一段之后再取消
+        wheel.schedule(now + 30, cancelledRuns::incrementAndGet).cancel();
+        HierarchicalTimingWheel.Timeout overflowTask = wheel.schedule(now + 300, cancelledRuns::incrementAndGet);
+        CountDownLatch sentinel = new CountDownLatch(1);
+        wheel.schedule(now + 400, sentinel::countDown);
+        wheel.start();
+        //此时上层的格子可能已经把任务放回下层了
+        Thread.sleep(150);
+        overflowTask.cancel();
+        assertTrue(sentinel.await(3, TimeUnit.SECONDS));
+        assertEquals(0, cancelledRuns.get());
+    }
+}
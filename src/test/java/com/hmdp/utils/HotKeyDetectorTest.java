@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class HotKeyDetectorTest {
+    private static final long THRESHOLD = 100;
+    //和HotKeyDetector.SLOTS一致
+    private static final int SLOTS = 5;
+    private static final String KEY = "cache:shop:1";
+
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HotKeyDetector detector = new HotKeyDetector();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(detector, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(detector, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(detector, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        //每次访问都记录，估算值就是真实次数
+        ReflectionTestUtils.setField(detector, "sampleRate", 1.0);
+        //窗口足够长，轮转只由测试触发
+        ReflectionTestUtils.setField(detector, "windowSeconds", 3600L);
+        ReflectionTestUtils.setField(detector, "threshold", THRESHOLD);
+        ReflectionTestUtils.setField(detector, "copyTtlMs", 60000L);
+        ReflectionTestUtils.setField(detector, "coolDownSeconds", 30L);
+        ReflectionTestUtils.setField(detector, "maxCopies", 1000);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(detector, "destroy");
+    }
+
+    @Test
+    void keyBecomesHotAtThreshold() {
+        record(KEY, THRESHOLD - 1);
+        assertFalse(detector.isHot(KEY));
+        verify(stringRedisTemplate, never()).convertAndSend(anyString(), anyString());
+
+        record(KEY, 1);
+        assertTrue(detector.isHot(KEY));
+        assertFalse(detector.isHot("cache:shop:2"));
+        //还热着的key不会每次访问都发消息
+        record(KEY, 50);
+        verify(stringRedisTemplate, times(1)).convertAndSend(RedisConstants.HOT_KEY_CHANNEL, KEY);
+        assertEquals(1, meterRegistry.counter("cache.hotkey.detected").count());
+    }
+
+    @Test
+    void countsSlideOutOfTheWindow() {
+        record(KEY, THRESHOLD - 40);
+        //还在窗口内的段仍然计数
+        rotate(SLOTS - 1);
+        record(KEY, 40);
+        assertTrue(detector.isHot(KEY));
+
+        String other = "cache:shop:2";
+        record(other, THRESHOLD - 40);
+        //转满一圈，最早的一段被清空
+        rotate(SLOTS);
+        record(other, 40);
+        assertFalse(detector.isHot(other));
+    }
+
+    @Test
+    void rotationDropsCooledKeysAndTheirCopies() {
+        hot(KEY);
+        detector.put(KEY, "v", detector.version(), Long.MAX_VALUE);
+        assertEquals("v", detector.get(KEY));
+
+        //冷却时间已经过了
+        Map<String, Long> hot = hotKeys();
+        hot.put(KEY, System.currentTimeMillis() - 1);
+        rotate(1);
+        assertFalse(hot.containsKey(KEY));
+        assertNull(detector.get(KEY));
+    }
+
+    @Test
+    void putOnlyKeepsCopiesOfHotKeys() {
+        detector.put(KEY, "v", detector.version(), Long.MAX_VALUE);
+        assertNull(detector.get(KEY));
+
+        hot(KEY);
+        detector.put(KEY, null, detector.version(), Long.MAX_VALUE);
+        assertSame(LocalCache.NULL, detector.get(KEY));
+        //已经过期的不保存
+        detector.put("cache:shop:2", "v", detector.version(), System.currentTimeMillis() - 1);
+        assertNull(detector.get("cache:shop:2"));
+    }
+
+    @Test
+    void putIsDroppedWhenInvalidatedConcurrently() {
+        hot(KEY);
+        //读redis之前拿到版本号，读的过程中key被删除
+        long version = detector.version();
+        detector.invalidate(KEY);
+        detector.put(KEY, "stale", version, Long.MAX_VALUE);
+        assertNull(detector.get(KEY));
+        verify(stringRedisTemplate).convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, KEY);
+
+        //其他节点删除时同样作废
+        version = detector.version();
+        detector.onMessage(message(RedisConstants.CACHE_INVALIDATE_CHANNEL, KEY), null);
+        detector.put(KEY, "stale", version, Long.MAX_VALUE);
+        assertNull(detector.get(KEY));
+
+        detector.put(KEY, "fresh", detector.version(), Long.MAX_VALUE);
+        assertEquals("fresh", detector.get(KEY));
+    }
+
+    private void record(String key, long times) {
+        for (long i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+
+    private void rotate(int times) {
+        for (int i = 0; i < times; i++) {
+            ReflectionTestUtils.invokeMethod(detector, "rotate");
+        }
+    }
+
+    //模拟其他节点发来的热点通知
+    private void hot(String key) {
+        detector.onMessage(message(RedisConstants.HOT_KEY_CHANNEL, key), null);
+        assertTrue(detector.isHot(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> hotKeys() {
+        return (Map<String, Long>) ReflectionTestUtils.getField(detector, "hot");
+    }
+
+    private static DefaultMessage message(String channel, String body) {
+        return new DefaultMessage(channel.getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.ibatis.cursor.Cursor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IdBloomFilterTest {
+    private static final int SHOPS = 20000;
+
+    private final ShopMapper shopMapper = mock(ShopMapper.class);
+    private final BlogMapper blogMapper = mock(BlogMapper.class);
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final IdBloomFilter bloomFilter = new IdBloomFilter();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(bloomFilter, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(bloomFilter, "blogMapper", blogMapper);
+        ReflectionTestUtils.setField(bloomFilter, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(bloomFilter, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(bloomFilter, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(bloomFilter, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(bloomFilter, "enabled", true);
+        ReflectionTestUtils.setField(bloomFilter, "fpp", 0.01);
+        //只在启动时加载一次，重建由测试自己触发
+        ReflectionTestUtils.setField(bloomFilter, "rebuildMinutes", 0L);
+        when(shopMapper.selectCount(null)).thenReturn(SHOPS);
+        when(blogMapper.selectCount(null)).thenReturn(0);
+        when(blogMapper.scanIds()).thenAnswer(invocation -> new ListCursor(ids(0), -1, null, null));
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(bloomFilter, "destroy");
+    }
+
+    @Test
+    void loadedIdsAreNeverRejected() throws Exception {
+        when(shopMapper.scanIds()).thenAnswer(invocation -> new ListCursor(ids(SHOPS), -1, null, null));
+        ReflectionTestUtils.invokeMethod(bloomFilter, "init");
+        waitUntil(this::loaded);
+
+        for (long id = 1; id <= SHOPS; id++) {
+            assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, id), "误判不存在：" + id);
+            assertFalse(bloomFilter.rejects(RedisConstants.CACHE_SHOP_KEY, id));
+        }
+        //测10万个不存在的id，按两倍余量分配，误判率应该低于配置的1%
+        int passed = 0;
+        for (long id = SHOPS + 1; id <= SHOPS * 6L; id++) {
+            if(bloomFilter.mightContain(IdBloomFilter.SHOP, id)){
+                passed++;
+            }
+        }
+        assertTrue(passed < SHOPS * 5 / 100, "误判太多：" + passed);
+        assertTrue(meterRegistry.counter("cache.bloom.rejected", "entity", IdBloomFilter.SHOP).count() > 0);
+        //没有过滤器的前缀和非Long的id不拦截
+        assertFalse(bloomFilter.rejects("cache:other:", Long.MAX_VALUE));
+        assertFalse(bloomFilter.rejects(RedisConstants.CACHE_SHOP_KEY, "x"));
+    }
+
+    @Test
+    void idsAddedDuringRebuildSurviveTheSwitch() throws Exception {
+        //第一次加载1..100，之后的重建读到一半停住
+        when(shopMapper.scanIds()).thenAnswer(invocation -> new ListCursor(ids(100), -1, null, null));
+        ReflectionTestUtils.invokeMethod(bloomFilter, "init");
+        waitUntil(this::loaded);
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(shopMapper.scanIds()).thenAnswer(invocation -> new ListCursor(ids(100), 50, scanning, release));
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> rebuild = pool.submit(() -> ReflectionTestUtils.invokeMethod(bloomFilter, "rebuildAll"));
+            assertTrue(scanning.await(5, TimeUnit.SECONDS));
+            //游标已经读过这些id的位置之后才插入的数据，新过滤器只能靠add拿到
+            long added = 5000;
+            bloomFilter.add(IdBloomFilter.SHOP, added);
+            assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, added));
+            release.countDown();
+            rebuild.get(5, TimeUnit.SECONDS);
+            assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, added));
+            for (long id = 1; id <= 100; id++) {
+                assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, id));
+            }
+            assertNull(ReflectionTestUtils.getField(entity(), "building"));
+        } finally {
+            pool.shutdownNow();
+        }
+        verify(stringRedisTemplate).convertAndSend(eq(RedisConstants.BLOOM_ADD_CHANNEL), any(Object.class));
+    }
+
+    @Test
+    void nothingIsRejectedBeforeTheFirstLoad() throws Exception {
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(shopMapper.scanIds()).thenAnswer(invocation -> new ListCursor(ids(100), 0, scanning, release));
+        ReflectionTestUtils.invokeMethod(bloomFilter, "init");
+        assertTrue(scanning.await(5, TimeUnit.SECONDS));
+        try {
+            assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, 123456L));
+            assertFalse(bloomFilter.rejects(RedisConstants.CACHE_SHOP_KEY, 123456L));
+            //加载期间新增的id也会进到第一个过滤器里
+            bloomFilter.add(IdBloomFilter.SHOP, 123456L);
+        } finally {
+            release.countDown();
+        }
+        waitUntil(this::loaded);
+        assertTrue(bloomFilter.mightContain(IdBloomFilter.SHOP, 123456L));
+    }
+
+    private Object entity() {
+        Map<?, ?> entities = (Map<?, ?>) ReflectionTestUtils.getField(bloomFilter, "entities");
+        return entities.get(IdBloomFilter.SHOP);
+    }
+
+    private boolean loaded() {
+        return ReflectionTestUtils.getField(entity(), "current") != null;
+    }
+
+    private static List<Long> ids(int n) {
+        return LongStream.rangeClosed(1, n).boxed().collect(Collectors.toList());
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * 读到第pauseAt个元素时通知scanning并等待release，模拟读得很慢的游标
+     */
+    private static class ListCursor implements Cursor<Long> {
+        private final List<Long> ids;
+        private final int pauseAt;
+        private final CountDownLatch scanning;
+        private final CountDownLatch release;
+        private int index = -1;
+
+        private ListCursor(List<Long> ids, int pauseAt, CountDownLatch scanning, CountDownLatch release) {
+            this.ids = ids;
+            this.pauseAt = pauseAt;
+            this.scanning = scanning;
+            this.release = release;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return index < ids.size() - 1;
+        }
+
+        @Override
+        public boolean isConsumed() {
+            return index >= ids.size() - 1;
+        }
+
+        @Override
+        public int getCurrentIndex() {
+            return index;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                @Override
+                public boolean hasNext() {
+                    return index + 1 < ids.size();
+                }
+
+                @Override
+                public Long next() {
+                    index++;
+                    if(index == pauseAt){
+                        scanning.countDown();
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return ids.get(index);
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+    private static final int THREADS = 200;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    void concurrentCallsShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger shared = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            //第一个线程开始加载后卡住，其他线程都在它完成之前到达
+            results.add(pool.submit(() -> singleFlight.execute("k", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "v";
+            }, shared::incrementAndGet)));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < THREADS; i++) {
+                results.add(pool.submit(() -> singleFlight.execute("k", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                }, shared::incrementAndGet)));
+            }
+            waitUntil(() -> shared.get() == THREADS - 1);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("v", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(THREADS - 1, shared.get());
+        assertTrue(calls().isEmpty());
+    }
+
+    @Test
+    void loaderExceptionReachesWaiters() throws Exception {
+        IllegalStateException failure = new IllegalStateException("db down");
+        AtomicInteger shared = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<Object> leader = pool.submit(() -> singleFlight.execute("k", () -> {
+                loading.countDown();
+                await(release);
+                throw failure;
+            }, shared::incrementAndGet));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            List<Future<Object>> waiters = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                waiters.add(pool.submit(() -> singleFlight.execute("k", () -> "unexpected", shared::incrementAndGet)));
+            }
+            waitUntil(() -> shared.get() == 7);
+            release.countDown();
+            //加载线程和等待的线程拿到的是同一个异常
+            assertSame(failure, cause(leader));
+            for (Future<Object> waiter : waiters) {
+                assertSame(failure, cause(waiter));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(calls().isEmpty());
+    }
+
+    @Test
+    void keyIsRemovedAfterCompletion() {
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(1, (int) singleFlight.execute("k", loads::incrementAndGet, () -> { }));
+        assertTrue(calls().isEmpty());
+        //完成之后再来的请求重新加载，不会拿到上一次的结果
+        assertEquals(2, (int) singleFlight.execute("k", loads::incrementAndGet, () -> { }));
+        //失败之后也会移除
+        assertThrows(IllegalStateException.class, () -> singleFlight.execute("k", () -> {
+            throw new IllegalStateException();
+        }, () -> { }));
+        assertTrue(calls().isEmpty());
+        assertEquals(3, (int) singleFlight.execute("k", loads::incrementAndGet, () -> { }));
+    }
+
+    @Test
+    void differentKeysDoNotShare() {
+        AtomicInteger shared = new AtomicInteger();
+        //加载a的过程中加载b，b不会等a
+        String value = singleFlight.execute("a", () -> "a" + singleFlight.execute("b", () -> "b", shared::incrementAndGet),
+                shared::incrementAndGet);
+        assertEquals("ab", value);
+        assertEquals(0, shared.get());
+    }
+
+    private Map<?, ?> calls(){
+        return (Map<?, ?>) ReflectionTestUtils.getField(singleFlight, "calls");
+    }
+
+    private static Throwable cause(Future<?> future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            throw new AssertionError("没有在5秒内完成", e);
+        }
+        throw new AssertionError("没有抛出异常");
+    }
+
+    private static void await(CountDownLatch latch){
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(1);
+        }
+    }
+}